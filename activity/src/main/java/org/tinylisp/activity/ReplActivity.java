@@ -32,6 +32,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.tinylisp.engine.Engine;
+import org.tinylisp.engine.ProgramCache;
 import org.tinylisp.formatter.Formatter;
 
 import java.io.File;
@@ -83,6 +84,8 @@ public class ReplActivity extends AppCompatActivity implements TextView.OnEditor
         mProgress = findViewById(R.id.progress);
 
         mEngine = new Engine();
+        // Re-running inputs from history skips parsing and analysis
+        mEngine.setProgramCache(new ProgramCache(100));
 
         try {
             restoreHistory();
@@ -105,7 +108,7 @@ public class ReplActivity extends AppCompatActivity implements TextView.OnEditor
 
     @CallSuper
     protected void initEnvironment() {
-        mEnv = Engine.defaultEnvironment();
+        mEnv = mEngine.newEnvironment();
         mEnv.put(Engine.TLSymbolExpression.of("clear"), new Engine.TLFunction() {
             @Override
             public Engine.TLExpression invoke(Engine.TLListExpression args) {
@@ -213,6 +216,8 @@ public class ReplActivity extends AppCompatActivity implements TextView.OnEditor
     }
 
     private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // The budget of the running evaluation, if any; cancelled from the menu or on destroy
+    private volatile Engine.TLBudget mBudget;
 
     protected void executeAsync(String input) {
         // echo
@@ -220,11 +225,14 @@ public class ReplActivity extends AppCompatActivity implements TextView.OnEditor
 
         mInput.setEnabled(false);
         mProgress.setVisibility(View.VISIBLE);
+        Engine.TLBudget budget = new Engine.TLBudget();
+        mBudget = budget;
+        invalidateOptionsMenu();
 
         mExecutor.execute(() -> {
             try {
                 long start = System.currentTimeMillis();
-                Engine.TLExpression result = mEngine.execute(input, mEnv);
+                Engine.TLExpression result = mEngine.execute(input, mEnv, budget);
                 long end = System.currentTimeMillis();
                 Log.d(TAG, "Execution took " + (end - start) + "ms");
                 runOnUiThread(() -> onExecutionSucceeded(result));
@@ -233,12 +241,28 @@ public class ReplActivity extends AppCompatActivity implements TextView.OnEditor
             }
 
             runOnUiThread(() ->{
+                mBudget = null;
+                invalidateOptionsMenu();
                 mProgress.setVisibility(View.GONE);
                 mInput.setEnabled(true);
             });
         });
     }
 
+    protected void cancelExecution() {
+        Engine.TLBudget budget = mBudget;
+        if (budget != null) {
+            budget.cancel();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        cancelExecution();
+        mExecutor.shutdown();
+        super.onDestroy();
+    }
+
     protected void onExecutionSucceeded(Engine.TLExpression result) {
         mEnv.put(Engine.TLSymbolExpression.of("_"), result);
         print(result == null ? "" : result.toString(), "\n");
@@ -331,9 +355,18 @@ public class ReplActivity extends AppCompatActivity implements TextView.OnEditor
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_cancel).setVisible(mBudget != null);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
-        if (item.getItemId() == R.id.action_share) {
+        if (item.getItemId() == R.id.action_cancel) {
+            cancelExecution();
+            return true;
+        } else if (item.getItemId() == R.id.action_share) {
             shareConsoleLog();
             return true;
         } else if (item.getItemId() == R.id.action_clear) {
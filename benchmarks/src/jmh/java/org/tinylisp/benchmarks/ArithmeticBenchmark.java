@@ -0,0 +1,40 @@
+package org.tinylisp.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinylisp.engine.Engine;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArithmeticBenchmark {
+
+    private Engine engine;
+    private Engine.TLEnvironment env;
+    private Engine.TLExpression fib;
+    private Engine.TLExpression tak;
+
+    @Setup
+    public void setup() throws Exception {
+        engine = new Engine();
+        env = Engine.defaultEnvironment();
+        engine.execute("(def fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))", env);
+        engine.execute("(def tak (lambda (x y z) (if (< y x) (tak (tak (- x 1) y z) (tak (- y 1) z x) (tak (- z 1) x y)) z)))", env);
+        fib = engine.parse("(fib 20)");
+        tak = engine.parse("(tak 18 12 6)");
+    }
+
+    @Benchmark
+    public Engine.TLExpression fib() throws Exception {
+        return engine.evaluate(fib, env);
+    }
+
+    @Benchmark
+    public Engine.TLExpression tak() throws Exception {
+        return engine.evaluate(tak, env);
+    }
+}
@@ -0,0 +1,32 @@
+package org.tinylisp.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinylisp.formatter.Formatter;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatterBenchmark {
+
+    @Param({"100", "1000"})
+    public int forms;
+
+    private Formatter formatter;
+    private String program;
+
+    @Setup
+    public void setup() {
+        formatter = new Formatter();
+        program = Programs.generate(forms);
+    }
+
+    @Benchmark
+    public String format() {
+        return formatter.format(program);
+    }
+}
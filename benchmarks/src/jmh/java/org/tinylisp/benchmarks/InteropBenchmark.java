@@ -0,0 +1,51 @@
+package org.tinylisp.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinylisp.engine.Engine;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InteropBenchmark {
+
+    private Engine engine;
+    private Engine.TLEnvironment env;
+    private Engine.TLMethodFunction max;
+    private Engine.TLListExpression maxArgs;
+    private Engine.TLExpression staticCall;
+    private Engine.TLExpression instanceCall;
+
+    @Setup
+    public void setup() throws Exception {
+        engine = new Engine();
+        env = Engine.defaultEnvironment();
+        max = Engine.TLMethodFunction.of(null, Math.class.getMethod("max", int.class, int.class));
+        env.put(Engine.TLSymbolExpression.of("max"), max);
+        env.put(Engine.TLSymbolExpression.of("concat"), Engine.TLMethodFunction.of("foo", String.class.getMethod("concat", String.class)));
+        maxArgs = new Engine.TLListExpression();
+        maxArgs.add(Engine.expressionOf(1));
+        maxArgs.add(Engine.expressionOf(2));
+        staticCall = engine.parse("(max 1 2)");
+        instanceCall = engine.parse("(concat \"bar\")");
+    }
+
+    @Benchmark
+    public Engine.TLExpression invoke() throws Exception {
+        return max.invoke(maxArgs);
+    }
+
+    @Benchmark
+    public Engine.TLExpression staticCall() throws Exception {
+        return engine.evaluate(staticCall, env);
+    }
+
+    @Benchmark
+    public Engine.TLExpression instanceCall() throws Exception {
+        return engine.evaluate(instanceCall, env);
+    }
+}
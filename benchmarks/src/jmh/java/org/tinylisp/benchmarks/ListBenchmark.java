@@ -0,0 +1,51 @@
+package org.tinylisp.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinylisp.engine.Engine;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark {
+
+    @Param({"100", "1000"})
+    public int size;
+
+    private Engine engine;
+    private Engine.TLEnvironment env;
+    private Engine.TLExpression build;
+    private Engine.TLExpression sum;
+    private Engine.TLExpression map;
+
+    @Setup
+    public void setup() throws Exception {
+        engine = new Engine();
+        env = Engine.defaultEnvironment();
+        engine.execute("(def build (lambda (n acc) (if (< n 1) acc (build (- n 1) (cons n acc)))))", env);
+        engine.execute("(def sum (lambda (l acc) (if l (sum (cdr l) (+ acc (car l))) acc)))", env);
+        engine.execute("(def items (build " + size + " ()))", env);
+        build = engine.parse("(build " + size + " ())");
+        sum = engine.parse("(sum items 0)");
+        map = engine.parse("(map (lambda (x) (* x 2)) items)");
+    }
+
+    @Benchmark
+    public Engine.TLExpression cons() throws Exception {
+        return engine.evaluate(build, env);
+    }
+
+    @Benchmark
+    public Engine.TLExpression carCdr() throws Exception {
+        return engine.evaluate(sum, env);
+    }
+
+    @Benchmark
+    public Engine.TLExpression map() throws Exception {
+        return engine.evaluate(map, env);
+    }
+}
@@ -0,0 +1,32 @@
+package org.tinylisp.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinylisp.engine.Engine;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"100", "10000"})
+    public int forms;
+
+    private Engine engine;
+    private String program;
+
+    @Setup
+    public void setup() {
+        engine = new Engine();
+        program = Programs.generate(forms);
+    }
+
+    @Benchmark
+    public Engine.TLExpression parse() {
+        return engine.parse(program);
+    }
+}
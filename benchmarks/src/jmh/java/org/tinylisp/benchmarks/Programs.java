@@ -0,0 +1,15 @@
+package org.tinylisp.benchmarks;
+
+class Programs {
+
+    // A program of the given number of top-level forms mixing definitions, calls, strings, comments and arrays
+    static String generate(int forms) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < forms; i++) {
+            sb.append("; form ").append(i).append('\n');
+            sb.append("(def f").append(i).append(" (lambda (a b) (let* ((c (+ a b ").append(i)
+                    .append(")) (d (list \"str").append(i).append("\" 1.5 [1 2 3]))) (if (< c 0) 'neg (cons c d)))))\n");
+        }
+        return sb.toString();
+    }
+}
@@ -2,22 +2,72 @@ package org.tinylisp.cmd;
 
 import org.tinylisp.engine.Engine;
 
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 
 public class Main {
 
     public static Object execute(String program) throws Exception {
         Engine engine = new Engine();
-        Engine.TLEnvironment env = Engine.defaultEnvironment();
+        Engine.TLEnvironment env = engine.newEnvironment();
         return engine.execute(program, env);
     }
 
+    public static Object execute(Reader program) throws Exception {
+        Engine engine = new Engine();
+        Engine.TLEnvironment env = engine.newEnvironment();
+        return engine.execute(program, env);
+    }
+
+    // Runs a script file one form at a time, reading the forms from the script cache if the file
+    // hasn't changed since it was last run
+    public static Object execute(Path script, boolean useCache) throws Exception {
+        Engine engine = new Engine();
+        Engine.TLEnvironment env = engine.newEnvironment();
+        if (!useCache) {
+            try (Reader reader = Files.newBufferedReader(script, StandardCharsets.UTF_8)) {
+                return engine.execute(reader, env);
+            }
+        }
+        try (ScriptCache.Forms forms = ScriptCache.defaultCache().open(script, engine)) {
+            Engine.TLExpression result = null;
+            for (Engine.TLExpression form = forms.next(); form != null; form = forms.next()) {
+                result = engine.evaluate(form, env);
+            }
+            if (result == null) {
+                throw new IllegalArgumentException("Unexpected end of input");
+            }
+            return result;
+        }
+    }
+
+    // Runs main with a profiler and writes its collapsed stacks, for flame graph tools, to a file
+    private static void profile(String file, String[] args) throws Exception {
+        Engine.TLProfiler profiler = new Engine.TLProfiler();
+        profiler.start();
+        try {
+            main(args);
+        } finally {
+            profiler.stop();
+            Files.write(Paths.get(file), profiler.collapsed().getBytes(StandardCharsets.UTF_8));
+            System.err.println(profiler);
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        if (args.length > 0) {
-            Object result = execute(Util.readString(Paths.get(args[0])));
-            System.out.println(result);
+        if (args.length > 1 && args[0].equals("--profile")) {
+            profile(args[1], Arrays.copyOfRange(args, 2, args.length));
+        } else if (args.length > 1 && args[0].equals("--no-cache")) {
+            System.out.println(execute(Paths.get(args[1]), false));
+        } else if (args.length > 0) {
+            System.out.println(execute(Paths.get(args[0]), true));
         } else if (System.in.available() > 0) {
-            Object result = execute(Util.readString(System.in));
+            Object result = execute(new InputStreamReader(System.in, StandardCharsets.UTF_8));
             System.out.println(result);
         } else {
             new Repl().start();
@@ -11,8 +11,13 @@ import org.jline.reader.impl.LineReaderImpl;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
 import org.tinylisp.engine.Engine;
+import org.tinylisp.engine.ProgramCache;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Repl {
 
@@ -28,6 +33,13 @@ public class Repl {
     private final LineReader mLineReader;
     private final Engine mEngine = new Engine();
     private Engine.TLEnvironment mEnv;
+    // Evaluation runs on its own thread so that Ctrl-C can cancel it
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TinyLisp evaluator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Engine.TLBudget mBudget;
     private final Completer mCompleter = (reader, line, candidates) -> {
         String token = line.word().substring(0, line.wordCursor());
         for (String completion : mEnv.complete(token)) {
@@ -36,6 +48,8 @@ public class Repl {
     };
 
     public Repl() throws IOException {
+        // Re-running inputs from history skips parsing and analysis
+        mEngine.setProgramCache(new ProgramCache(100));
         mTerminal = TerminalBuilder.builder()
                 .name("TinyLisp terminal")
                 .system(true)
@@ -46,11 +60,18 @@ public class Repl {
                 .parser(new TinyLispParser())
                 .completer(mCompleter)
                 .build();
+        // The line reader handles Ctrl-C itself while reading
+        mTerminal.handle(Terminal.Signal.INT, signal -> {
+            Engine.TLBudget budget = mBudget;
+            if (budget != null) {
+                budget.cancel();
+            }
+        });
         initEnvironment();
     }
 
     protected void initEnvironment() {
-        mEnv = Engine.defaultEnvironment();
+        mEnv = mEngine.newEnvironment();
         mEnv.put(Engine.TLSymbolExpression.of("clear"), new Engine.TLFunction() {
             @Override
             public Engine.TLExpression invoke(Engine.TLListExpression args) {
@@ -86,7 +107,7 @@ public class Repl {
             String input = prompt().trim();
             if (!input.isEmpty()) {
                 try {
-                    Engine.TLExpression result = mEngine.execute(input, mEnv);
+                    Engine.TLExpression result = execute(input);
                     mEnv.put(Engine.TLSymbolExpression.of("_"), result);
                     mTerminal.writer().println(result.getValue() == null ? "" : result);
                 } catch (UserExitException ex) {
@@ -98,6 +119,22 @@ public class Repl {
         }
     }
 
+    private Engine.TLExpression execute(String input) throws Exception {
+        Engine.TLBudget budget = new Engine.TLBudget();
+        mBudget = budget;
+        try {
+            Future<Engine.TLExpression> result = mExecutor.submit(() -> mEngine.execute(input, mEnv, budget));
+            return result.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        } finally {
+            mBudget = null;
+        }
+    }
+
     private String prompt() {
         try {
             return mLineReader.readLine(">>> ");
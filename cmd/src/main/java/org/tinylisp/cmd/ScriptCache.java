@@ -0,0 +1,638 @@
+package org.tinylisp.cmd;
+
+import org.tinylisp.engine.Engine;
+import org.tinylisp.engine.Engine.TLArrayExpression;
+import org.tinylisp.engine.Engine.TLDoubleExpression;
+import org.tinylisp.engine.Engine.TLExpression;
+import org.tinylisp.engine.Engine.TLJavaObjectExpression;
+import org.tinylisp.engine.Engine.TLListExpression;
+import org.tinylisp.engine.Engine.TLLongExpression;
+import org.tinylisp.engine.Engine.TLSymbolExpression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Array;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Keeps the parsed forms of script files in a compact binary format, one cache file per script
+// path, so that running an unchanged script again reads its forms instead of parsing them. Forms
+// are read from the cache, or parsed and written to it, one at a time as they are evaluated, so
+// memory use doesn't grow with the script and the first form runs before the rest is read.
+//
+// A cache file is fresh if the script's size and modification time match the ones it was written
+// for; if only the time differs, the script is hashed to confirm that its contents are the same,
+// and the time is updated. The body is checked against its checksum before any form is returned.
+class ScriptCache {
+
+    private static final int MAGIC = 0x544c4303; // "TLC" and a format version
+    private static final String EXTENSION = ".tlc";
+    // The least recently used files beyond this many are deleted when a new one is written
+    static final int MAX_ENTRIES = 64;
+
+    // Header: magic, script size, script modification time, script SHA-256, body length, body
+    // CRC-32, then the engine version. The hash, length, and CRC are filled in once the body has
+    // been written.
+    static final int MODIFIED_OFFSET = 12;
+    private static final int HASH_OFFSET = 20;
+    private static final int HASH_SIZE = 32;
+    static final int LENGTH_OFFSET = HASH_OFFSET + HASH_SIZE;
+    private static final int CHECKSUM_OFFSET = LENGTH_OFFSET + 8;
+
+    private static final byte LIST = 0;
+    private static final byte SYMBOL = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte BIG_INTEGER = 6;
+    private static final byte NULL = 7;
+    private static final byte TRUE = 8;
+    private static final byte FALSE = 9;
+    private static final byte ARRAY = 10;
+    // The first occurrence of a symbol carries its name; later ones refer to it by index, so that
+    // each symbol is only interned once when loading
+    private static final byte NEW_SYMBOL = 11;
+    private static final byte END = 12;
+
+    private final Path dir;
+
+    ScriptCache(Path dir) {
+        this.dir = dir;
+    }
+
+    // The tinylisp.cache.dir system property, or tinylisp under the user cache directory
+    static ScriptCache defaultCache() {
+        String dir = System.getProperty("tinylisp.cache.dir");
+        if (dir == null) {
+            String xdg = System.getenv("XDG_CACHE_HOME");
+            Path base = xdg == null || xdg.isEmpty() ? Paths.get(System.getProperty("user.home"), ".cache") : Paths.get(xdg);
+            return new ScriptCache(base.resolve("tinylisp"));
+        }
+        return new ScriptCache(Paths.get(dir));
+    }
+
+    Path getDir() {
+        return dir;
+    }
+
+    Path cacheFile(Path script) {
+        byte[] path = script.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+        return dir.resolve(hex(newDigest().digest(path)) + EXTENSION);
+    }
+
+    // The forms of the script, read from its cache file if that is fresh, and otherwise parsed and
+    // written to a new cache file that replaces the old one once the last form has been read
+    Forms open(Path script, Engine engine) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(script, BasicFileAttributes.class);
+        Path cached = cacheFile(script);
+        if (Files.isRegularFile(cached)) {
+            Forms forms = openCached(cached, script, attributes);
+            if (forms != null) {
+                return forms;
+            }
+        }
+        return new ParsedForms(script, attributes, cached, engine);
+    }
+
+    // Null unless the file is complete, from this engine version, and for the script as it is.
+    // Files that are damaged are deleted.
+    private static Forms openCached(Path cached, Path script, BasicFileAttributes attributes) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(cached, StandardOpenOption.READ);
+            Input in = new Input(channel, channel.size());
+            if (in.getInt() != MAGIC) {
+                channel.close();
+                return null;
+            }
+            long size = in.getLong();
+            long modified = in.getLong();
+            byte[] hash = in.bytes(HASH_SIZE);
+            long length = in.getLong();
+            int checksum = in.getInt();
+            if (!in.string().equals(Engine.VERSION) || size != attributes.size()) {
+                channel.close();
+                return null;
+            }
+            long time = attributes.lastModifiedTime().toMillis();
+            if (modified != time && !Arrays.equals(hash, hash(script))) {
+                channel.close();
+                return null;
+            }
+            // The whole body is checked before any of it is evaluated, so that a damaged file
+            // can't fail after some forms have run
+            long start = channel.size() - in.remaining();
+            if (length != in.remaining() || checksum != checksum(channel, start)) {
+                channel.close();
+                delete(cached);
+                return null;
+            }
+            if (modified != time) {
+                // Saves hashing the script again next time
+                writeLong(cached, MODIFIED_OFFSET, time);
+            }
+            channel.position(start);
+            try {
+                // Recently used files are kept longest
+                Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException ex) {
+                // Only affects pruning
+            }
+            return new CachedForms(cached, channel, new Decoder(new Input(channel, length)));
+        } catch (IOException | RuntimeException ex) {
+            // Unreadable; parse again and overwrite it
+            closeQuietly(channel);
+            delete(cached);
+            return null;
+        }
+    }
+
+    // The CRC-32 of the channel's contents from start to the end
+    private static int checksum(FileChannel channel, long start) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        channel.position(start);
+        while (channel.read(buffer) != -1) {
+            crc.update(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        return (int) crc.getValue();
+    }
+
+    private static void writeLong(Path file, long offset, long value) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(ByteBuffer.allocate(8).putLong(value).array()), offset);
+        } catch (IOException ex) {
+            // Only costs hashing the script again
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            // Replaced when the script is next parsed
+        }
+    }
+
+    private static byte[] hash(Path script) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(script), digest)) {
+            byte[] buffer = new byte[65536];
+            while (in.read(buffer) != -1) {
+                // Digesting
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // Deletes the least recently used cache files beyond MAX_ENTRIES
+    void prune() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        if (files.size() <= MAX_ENTRIES) {
+            return;
+        }
+        final Map<Path, Long> times = new HashMap<>();
+        for (Path file : files) {
+            try {
+                times.put(file, Files.getLastModifiedTime(file).toMillis());
+            } catch (IOException ex) {
+                times.put(file, 0L);
+            }
+        }
+        Collections.sort(files, new Comparator<Path>() {
+            @Override public int compare(Path a, Path b) {
+                return Long.compare(times.get(b), times.get(a));
+            }
+        });
+        for (Path file : files.subList(MAX_ENTRIES, files.size())) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                // Maybe in use on a platform that doesn't allow deleting it
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ex) {
+                // Nothing left to do
+            }
+        }
+    }
+
+    abstract static class Forms implements Closeable {
+        // The next form, or null at the end of the script
+        abstract TLExpression next() throws IOException;
+        abstract boolean isCached();
+    }
+
+    private static class CachedForms extends Forms {
+        private final Path cached;
+        private final FileChannel channel;
+        private final Decoder decoder;
+        CachedForms(Path cached, FileChannel channel, Decoder decoder) {
+            this.cached = cached;
+            this.channel = channel;
+            this.decoder = decoder;
+        }
+        @Override TLExpression next() throws IOException {
+            try {
+                return decoder.next();
+            } catch (IOException ex) {
+                // So that the next run parses the script instead of failing the same way
+                delete(cached);
+                throw ex;
+            }
+        }
+        @Override boolean isCached() {
+            return true;
+        }
+        @Override public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Writes each form to a temporary file as it is read, and moves the file into place after the
+    // last one. Closing before then, because of a parse or evaluation error, discards it.
+    private class ParsedForms extends Forms {
+        private final Path script;
+        private final BasicFileAttributes attributes;
+        private final Path cached;
+        private final MessageDigest digest = newDigest();
+        private final CRC32 checksum = new CRC32();
+        private final InputStreamReader reader;
+        private final Engine.TLFormReader forms;
+        private Path temp;
+        private FileChannel channel;
+        private Encoder encoder;
+        ParsedForms(Path script, BasicFileAttributes attributes, Path cached, Engine engine) throws IOException {
+            this.script = script;
+            this.attributes = attributes;
+            this.cached = cached;
+            this.reader = new InputStreamReader(new DigestInputStream(new BufferedInputStream(Files.newInputStream(script)), digest),
+                    StandardCharsets.UTF_8);
+            this.forms = engine.newFormReader(reader);
+            try {
+                Files.createDirectories(dir);
+                temp = Files.createTempFile(dir, "tmp", EXTENSION);
+                channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel)), checksum));
+                out.writeInt(MAGIC);
+                out.writeLong(attributes.size());
+                out.writeLong(attributes.lastModifiedTime().toMillis());
+                out.write(new byte[HASH_SIZE]);
+                out.writeLong(0);
+                out.writeInt(0);
+                writeString(Engine.VERSION, out);
+                // Only the body is checked
+                checksum.reset();
+                encoder = new Encoder(out);
+            } catch (IOException ex) {
+                // Not being able to cache only costs time
+                discard();
+            }
+        }
+        @Override TLExpression next() throws IOException {
+            TLExpression form = forms.read();
+            if (encoder != null) {
+                try {
+                    if (form == null) {
+                        publish();
+                    } else {
+                        encoder.write(form);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    discard();
+                }
+            }
+            return form;
+        }
+        private void publish() throws IOException {
+            long length = encoder.finish();
+            BasicFileAttributes now = Files.readAttributes(script, BasicFileAttributes.class);
+            if (now.size() != attributes.size() || !now.lastModifiedTime().equals(attributes.lastModifiedTime())) {
+                // Changed while it was being read
+                discard();
+                return;
+            }
+            channel.write(ByteBuffer.wrap(digest.digest()), HASH_OFFSET);
+            channel.write(ByteBuffer.wrap(ByteBuffer.allocate(8).putLong(length).array()), LENGTH_OFFSET);
+            channel.write(ByteBuffer.wrap(ByteBuffer.allocate(4).putInt((int) checksum.getValue()).array()), CHECKSUM_OFFSET);
+            channel.close();
+            channel = null;
+            encoder = null;
+            // Concurrent runs only ever see complete files
+            Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            prune();
+        }
+        private void discard() {
+            encoder = null;
+            closeQuietly(channel);
+            channel = null;
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ex) {
+                    // Left for pruning
+                }
+                temp = null;
+            }
+        }
+        @Override boolean isCached() {
+            return false;
+        }
+        @Override public void close() throws IOException {
+            discard();
+            reader.close();
+        }
+    }
+
+    static class Encoder {
+        private final DataOutputStream out;
+        private final int start;
+        private final Map<TLSymbolExpression, Integer> symbols = new HashMap<>();
+        Encoder(DataOutputStream out) {
+            this.out = out;
+            this.start = out.size();
+        }
+        void write(TLExpression expression) throws IOException {
+            if (expression instanceof TLListExpression) {
+                TLListExpression list = (TLListExpression) expression;
+                out.writeByte(LIST);
+                writeVarint(list.size(), out);
+                for (TLExpression item : list) {
+                    write(item);
+                }
+            } else if (expression instanceof TLSymbolExpression) {
+                Integer index = symbols.get(expression);
+                if (index == null) {
+                    symbols.put((TLSymbolExpression) expression, symbols.size());
+                    out.writeByte(NEW_SYMBOL);
+                    writeString(((TLSymbolExpression) expression).getValue(), out);
+                } else {
+                    out.writeByte(SYMBOL);
+                    writeVarint(index, out);
+                }
+            } else if (expression instanceof TLLongExpression) {
+                long value = ((TLLongExpression) expression).longValue();
+                if (value == (int) value) {
+                    out.writeByte(INT);
+                    // Zigzag, so that small negative numbers are short too
+                    writeVarint(((int) value << 1) ^ ((int) value >> 31), out);
+                } else {
+                    out.writeByte(LONG);
+                    out.writeLong(value);
+                }
+            } else if (expression instanceof TLDoubleExpression) {
+                out.writeByte(DOUBLE);
+                out.writeDouble(((TLDoubleExpression) expression).doubleValue());
+            } else if (expression == TLJavaObjectExpression.NULL) {
+                out.writeByte(NULL);
+            } else if (expression == TLJavaObjectExpression.TRUE) {
+                out.writeByte(TRUE);
+            } else if (expression == TLJavaObjectExpression.FALSE) {
+                out.writeByte(FALSE);
+            } else if (expression instanceof TLArrayExpression) {
+                // Arrays are rebuilt from their elements the way the reader builds them
+                Object array = expression.getValue();
+                int length = Array.getLength(array);
+                out.writeByte(ARRAY);
+                writeVarint(length, out);
+                for (int i = 0; i < length; i++) {
+                    write(Engine.expressionOf(Array.get(array, i)));
+                }
+            } else if (expression.getValue() instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) expression.getValue(), out);
+            } else if (expression.getValue() instanceof BigInteger) {
+                out.writeByte(BIG_INTEGER);
+                byte[] bytes = ((BigInteger) expression.getValue()).toByteArray();
+                writeVarint(bytes.length, out);
+                out.write(bytes);
+            } else {
+                throw new IllegalArgumentException("Can't cache " + expression);
+            }
+        }
+        // Ends the body and returns its length
+        long finish() throws IOException {
+            out.writeByte(END);
+            out.flush();
+            return out.size() - start;
+        }
+    }
+
+    // writeUTF is limited to 64K bytes
+    private static void writeString(String value, DataOutputStream out) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length, out);
+        out.write(bytes);
+    }
+
+    // Seven bits per byte, low bits first, with the high bit set on all but the last byte
+    private static void writeVarint(int value, DataOutputStream out) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static class Decoder {
+        private final Input in;
+        private final List<TLSymbolExpression> symbols = new ArrayList<>();
+        Decoder(Input in) {
+            this.in = in;
+        }
+        // The next form, or null after the last one
+        TLExpression next() throws IOException {
+            byte tag = in.get();
+            return tag == END ? null : read(tag);
+        }
+        private TLExpression read(byte tag) throws IOException {
+            switch (tag) {
+                case LIST: {
+                    int size = in.length();
+                    TLListExpression list = new TLListExpression();
+                    for (int i = 0; i < size; i++) {
+                        list.add(read(in.get()));
+                    }
+                    return list;
+                }
+                case NEW_SYMBOL: {
+                    TLSymbolExpression symbol = TLSymbolExpression.of(in.string());
+                    symbols.add(symbol);
+                    return symbol;
+                }
+                case SYMBOL: {
+                    int index = in.varint();
+                    if (index < 0 || index >= symbols.size()) {
+                        throw new IOException("Unknown symbol: " + index);
+                    }
+                    return symbols.get(index);
+                }
+                case INT: {
+                    int value = in.varint();
+                    return TLLongExpression.of((value >>> 1) ^ -(value & 1));
+                }
+                case LONG:
+                    return TLLongExpression.of(in.getLong());
+                case DOUBLE:
+                    return TLDoubleExpression.of(in.getDouble());
+                case STRING:
+                    return TLJavaObjectExpression.of(in.string());
+                case BIG_INTEGER:
+                    return TLJavaObjectExpression.of(new BigInteger(in.bytes(in.length())));
+                case NULL:
+                    return TLJavaObjectExpression.NULL;
+                case TRUE:
+                    return TLJavaObjectExpression.TRUE;
+                case FALSE:
+                    return TLJavaObjectExpression.FALSE;
+                case ARRAY: {
+                    int length = in.length();
+                    List<Object> values = new ArrayList<>();
+                    for (int i = 0; i < length; i++) {
+                        values.add(read(in.get()).getValue());
+                    }
+                    return TLArrayExpression.from(values);
+                }
+                default:
+                    throw new IOException("Unknown tag: " + tag);
+            }
+        }
+    }
+
+    // Reads a channel of known length through a fixed buffer. Lengths read from the data are
+    // checked against what is left, so a corrupt file can't cause a huge allocation.
+    static class Input {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+        private long remaining;
+        Input(ReadableByteChannel channel, long length) {
+            this.channel = channel;
+            this.remaining = length;
+            buffer.flip();
+        }
+        long remaining() {
+            return remaining;
+        }
+        private ByteBuffer require(int count) throws IOException {
+            if (count > remaining) {
+                throw new IOException("Unexpected end of cache file");
+            }
+            if (buffer.remaining() < count) {
+                buffer.compact();
+                while (buffer.position() < count) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Unexpected end of cache file");
+                    }
+                }
+                buffer.flip();
+            }
+            remaining -= count;
+            return buffer;
+        }
+        byte get() throws IOException {
+            return require(1).get();
+        }
+        int getInt() throws IOException {
+            return require(4).getInt();
+        }
+        long getLong() throws IOException {
+            return require(8).getLong();
+        }
+        double getDouble() throws IOException {
+            return require(8).getDouble();
+        }
+        int varint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = get() & 0xff;
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+        // A count of bytes or items, each of which takes at least a byte of what is left
+        int length() throws IOException {
+            int length = varint();
+            if (length < 0 || length > remaining) {
+                throw new IOException("Invalid length: " + length);
+            }
+            return length;
+        }
+        byte[] bytes(int count) throws IOException {
+            byte[] bytes = new byte[count];
+            int offset = 0;
+            while (offset < count) {
+                int chunk = Math.min(count - offset, buffer.capacity());
+                require(chunk).get(bytes, offset, chunk);
+                offset += chunk;
+            }
+            return bytes;
+        }
+        String string() throws IOException {
+            return new String(bytes(length()), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.tinylisp.cmd;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tinylisp.engine.Engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScriptCacheTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String PROGRAM = "(def f (lambda (x) (* x 3)))\n"
+            + "; A comment\n"
+            + "(list 'a \"b\\nc\" 1 -1 12345678901 123456789012345678901234567890 null true false)\n"
+            + "[1 2 3] [1.5 2.0] [a \"b\" [1]] []\n"
+            + "(f 2)";
+
+    private static List<Engine.TLExpression> readAll(ScriptCache cache, Path script, Engine engine, boolean cached)
+            throws IOException {
+        List<Engine.TLExpression> forms = new ArrayList<>();
+        try (ScriptCache.Forms in = cache.open(script, engine)) {
+            assertEquals(cached, in.isCached());
+            for (Engine.TLExpression form = in.next(); form != null; form = in.next()) {
+                forms.add(form);
+            }
+        }
+        return forms;
+    }
+
+    private Path write(String name, String program) throws IOException {
+        Path script = folder.getRoot().toPath().resolve(name);
+        Files.write(script, program.getBytes(StandardCharsets.UTF_8));
+        return script;
+    }
+
+    private ScriptCache newCache() {
+        return new ScriptCache(folder.getRoot().toPath().resolve("cache"));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Path script = write("script.lisp", PROGRAM);
+        ScriptCache cache = newCache();
+        Engine engine = new Engine();
+        List<Engine.TLExpression> forms = readAll(cache, script, engine, false);
+        assertTrue(Files.isRegularFile(cache.cacheFile(script)));
+        List<Engine.TLExpression> decoded = readAll(cache, script, engine, true);
+        assertEquals(7, forms.size());
+        assertEquals(forms.size(), decoded.size());
+        for (int i = 0; i < forms.size(); i++) {
+            // Nested arrays print as Java objects
+            if (i != 4) {
+                assertEquals(forms.get(i).toString(), decoded.get(i).toString());
+            }
+        }
+        assertSame(Engine.TLSymbolExpression.of("def"), ((Engine.TLListExpression) decoded.get(0)).get(0));
+        assertTrue(decoded.get(2).getValue() instanceof int[]);
+        assertTrue(decoded.get(3).getValue() instanceof double[]);
+        assertTrue(Arrays.deepEquals((Object[]) forms.get(4).getValue(), (Object[]) decoded.get(4).getValue()));
+        assertTrue(decoded.get(5).getValue() instanceof Object[]);
+        Engine.TLEnvironment env = engine.newEnvironment();
+        Engine.TLExpression result = null;
+        for (Engine.TLExpression form : decoded) {
+            result = engine.evaluate(form, env);
+        }
+        assertEquals(6, result.getValue());
+    }
+
+    @Test
+    public void testFreshness() throws Exception {
+        Path script = write("script.lisp", "(+ 1 2)");
+        ScriptCache cache = newCache();
+        Engine engine = new Engine();
+        readAll(cache, script, engine, false);
+        readAll(cache, script, engine, true);
+        // Touched but unchanged scripts are confirmed by their hash
+        Files.setLastModifiedTime(script, FileTime.fromMillis(Files.getLastModifiedTime(script).toMillis() - 60000));
+        readAll(cache, script, engine, true);
+        // and the new time is recorded so that they aren't hashed again
+        assertEquals(Files.getLastModifiedTime(script).toMillis(),
+                ByteBuffer.wrap(Files.readAllBytes(cache.cacheFile(script))).getLong(ScriptCache.MODIFIED_OFFSET));
+        // Changed scripts replace their entry
+        write("script.lisp", "(+ 1 3)");
+        Files.setLastModifiedTime(script, FileTime.fromMillis(Files.getLastModifiedTime(script).toMillis() - 60000));
+        assertEquals("[(+ 1 3)]", readAll(cache, script, engine, false).toString());
+        assertEquals("[(+ 1 3)]", readAll(cache, script, engine, true).toString());
+        write("script.lisp", "(+ 1 3 4)");
+        assertEquals("[(+ 1 3 4)]", readAll(cache, script, engine, false).toString());
+        assertEquals(1, list(cache).size());
+    }
+
+    @Test
+    public void testIncomplete() throws Exception {
+        Path script = write("script.lisp", "(+ 1 2) (+ 3 4)");
+        ScriptCache cache = newCache();
+        Engine engine = new Engine();
+        // Scripts that aren't read to the end aren't cached
+        try (ScriptCache.Forms forms = cache.open(script, engine)) {
+            assertEquals("(+ 1 2)", forms.next().toString());
+        }
+        assertTrue(list(cache).isEmpty());
+        // Forms before a syntax error are still returned
+        write("script.lisp", "(+ 1 2) (+ 3");
+        try (ScriptCache.Forms forms = cache.open(script, engine)) {
+            assertEquals("(+ 1 2)", forms.next().toString());
+            try {
+                forms.next();
+                fail();
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+        assertTrue(list(cache).isEmpty());
+    }
+
+    @Test
+    public void testCorrupt() throws Exception {
+        Path script = write("script.lisp", PROGRAM);
+        ScriptCache cache = newCache();
+        Engine engine = new Engine();
+        readAll(cache, script, engine, false);
+        Path cached = cache.cacheFile(script);
+        byte[] bytes = Files.readAllBytes(cached);
+        // Garbage and truncated files are replaced
+        Files.write(cached, new byte[] {1, 2, 3});
+        assertEquals(7, readAll(cache, script, engine, false).size());
+        Files.write(cached, Arrays.copyOf(bytes, bytes.length - 1));
+        assertEquals(7, readAll(cache, script, engine, false).size());
+        assertEquals(7, readAll(cache, script, engine, true).size());
+        // So are ones whose body is damaged, before any form is read from them
+        byte[] damaged = bytes.clone();
+        damaged[damaged.length - 2] ^= 1;
+        Files.write(cached, damaged);
+        assertEquals(7, readAll(cache, script, engine, false).size());
+        assertArrayEquals(bytes, Files.readAllBytes(cached));
+        int removed = 20;
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - removed);
+        ByteBuffer header = ByteBuffer.wrap(truncated);
+        header.putLong(ScriptCache.LENGTH_OFFSET, header.getLong(ScriptCache.LENGTH_OFFSET) - removed);
+        truncated[truncated.length - 1] = 12;
+        Files.write(cached, truncated);
+        assertEquals(7, readAll(cache, script, engine, false).size());
+        assertEquals(7, readAll(cache, script, engine, true).size());
+    }
+
+    @Test
+    public void testInvalidLengths() throws Exception {
+        byte[][] inputs = {
+                {5, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07},
+                {0, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f},
+                {6, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x01},
+        };
+        for (byte[] input : inputs) {
+            ScriptCache.Decoder decoder = new ScriptCache.Decoder(
+                    new ScriptCache.Input(Channels.newChannel(new ByteArrayInputStream(input)), input.length));
+            try {
+                decoder.next();
+                fail();
+            } catch (IOException ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+        ScriptCache cache = newCache();
+        Engine engine = new Engine();
+        Path first = write("first.lisp", "1");
+        readAll(cache, first, engine, false);
+        Files.setLastModifiedTime(cache.cacheFile(first), FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        for (int i = 0; i < ScriptCache.MAX_ENTRIES; i++) {
+            readAll(cache, write(i + ".lisp", String.valueOf(i)), engine, false);
+        }
+        assertEquals(ScriptCache.MAX_ENTRIES, list(cache).size());
+        assertFalse(Files.exists(cache.cacheFile(first)));
+    }
+
+    private static List<Path> list(ScriptCache cache) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(cache.getDir())) {
+            try (java.nio.file.DirectoryStream<Path> stream = Files.newDirectoryStream(cache.getDir())) {
+                for (Path file : stream) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+}
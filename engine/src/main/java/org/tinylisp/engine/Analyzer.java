@@ -0,0 +1,501 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+class Analyzer {
+
+    private static final TLSymbolExpression DEF = TLSymbolExpression.of("def");
+    private static final TLSymbolExpression LAMBDA = TLSymbolExpression.of("lambda");
+    private static final TLSymbolExpression IF = TLSymbolExpression.of("if");
+    private static final TLSymbolExpression QUOTE = TLSymbolExpression.of("quote");
+    private static final TLSymbolExpression PROGN = TLSymbolExpression.of("progn");
+    private static final TLSymbolExpression LET_STAR = TLSymbolExpression.of("let*");
+    private static final TLSymbolExpression DOT = TLSymbolExpression.of(".");
+    private static final TLSymbolExpression PROFILE = TLSymbolExpression.of("profile");
+
+    private final Engine engine;
+
+    Analyzer(Engine engine) {
+        this.engine = engine;
+    }
+
+    abstract static class Node {
+        abstract TLExpression execute(TLEnvironment env, Frame frame) throws Exception;
+    }
+
+    // Runtime storage for the locals of one lambda invocation or let* form
+    static class Frame {
+        final TLExpression[] slots;
+        final Frame parent;
+        Frame(int size, Frame parent) {
+            this.slots = new TLExpression[size];
+            this.parent = parent;
+        }
+    }
+
+    // Analysis-time counterpart of Frame: maps local names to slot indices. The outermost scope
+    // has no locals and supplies the environment whose cells global references are bound to.
+    static class Scope {
+        private final List<TLSymbolExpression> names = new ArrayList<>();
+        private final Scope parent;
+        private final TLEnvironment env;
+        Scope(TLEnvironment env) {
+            this.parent = null;
+            this.env = env;
+        }
+        Scope(Scope parent) {
+            this.parent = parent;
+            this.env = parent.env;
+        }
+        int add(TLSymbolExpression name) {
+            names.add(name);
+            return names.size() - 1;
+        }
+        int size() {
+            return names.size();
+        }
+    }
+
+    Node analyze(TLExpression object, Scope scope) {
+        return analyze(object, scope, false);
+    }
+
+    // A node in tail position may return a TailCall that the enclosing lambda invocation will run
+    Node analyze(TLExpression object, Scope scope, boolean tail) {
+        if (object instanceof TLSymbolExpression) {
+            return analyzeSymbol((TLSymbolExpression) object, scope);
+        } else if (object instanceof TLAtomExpression) {
+            return new ConstantNode(object);
+        } else if (object instanceof TLListExpression) {
+            TLListExpression expression = (TLListExpression) object;
+            if (expression.isEmpty()) {
+                // Empty list is nil/false
+                return new ConstantNode(expression);
+            }
+            TLExpression first = expression.get(0);
+            if (first == DEF) {
+                TLSymbolExpression name = (TLSymbolExpression) expression.get(1);
+                Node value = analyze(expression.get(2), scope);
+                if (value instanceof LambdaNode) {
+                    ((LambdaNode) value).name = name.getValue();
+                }
+                return new DefNode(scope.env.cell(name), value);
+            } else if (first == LAMBDA) {
+                TLListExpression params = (TLListExpression) expression.get(1);
+                return analyzeLambda(params, expression, 2, scope);
+            } else if (first == IF) {
+                Node condition = analyze(expression.get(1), scope);
+                Node then = analyze(expression.get(2), scope, tail);
+                return new IfNode(condition, then, analyzeBody(expression, 3, scope, tail));
+            } else if (first == QUOTE) {
+                return new ConstantNode(expression.get(1));
+            } else if (first == PROGN) {
+                return analyzeBody(expression, 1, scope, tail);
+            } else if (first == LET_STAR) {
+                TLListExpression defs = (TLListExpression) expression.get(1);
+                Scope letScope = new Scope(scope);
+                Node[] values = new Node[defs.size()];
+                int i = 0;
+                for (TLExpression exp : defs) {
+                    TLListExpression def = (TLListExpression) exp;
+                    TLSymbolExpression name = (TLSymbolExpression) def.get(0);
+                    TLExpression value = def.get(1);
+                    // Values see only previous definitions, except that a lambda can refer to
+                    // itself since its slot is filled by the time it is called
+                    if (isLambda(value)) {
+                        letScope.add(name);
+                        values[i++] = analyze(value, letScope);
+                    } else {
+                        values[i++] = analyze(value, letScope);
+                        letScope.add(name);
+                    }
+                }
+                return new LetNode(values, analyzeBody(expression, 2, letScope, tail));
+            } else if (first == DOT) {
+                // (. target "name" args...) calls a Java method chosen by the runtime argument classes
+                Node target = analyze(expression.get(1), scope);
+                TLExpression name = expression.get(2);
+                if (!(name instanceof TLJavaObjectExpression) || !(name.getValue() instanceof String)) {
+                    throw new IllegalArgumentException("Method name must be a string: " + name);
+                }
+                Node[] args = new Node[expression.size() - 3];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = analyze(expression.get(i + 3), scope);
+                }
+                return new MemberCallNode(target, (String) name.getValue(), args);
+            } else if (first == PROFILE) {
+                // (profile body...) evaluates the body and returns the profiler that recorded it
+                return new ProfileNode(analyzeBody(expression, 1, scope, false));
+            } else {
+                // First item wasn't a special form so it must evaluate to a function
+                Node[] args = new Node[expression.size() - 1];
+                int i = 0;
+                for (TLExpression arg : expression.rest()) {
+                    args[i++] = analyze(arg, scope);
+                }
+                Node function = analyze(first, scope);
+                return tail ? new TailCallNode(first, function, args, engine) : new CallNode(first, function, args, engine);
+            }
+        } else {
+            throw new IllegalArgumentException("Can't evaluate " + object);
+        }
+    }
+
+    // Forms from start onward are wrapped in an implicit progn
+    Node analyzeBody(TLListExpression expression, int start, Scope scope, boolean tail) {
+        int count = Math.max(expression.size() - start, 0);
+        if (count == 0) {
+            return new ConstantNode(Engine.expressionOf(null));
+        } else if (count == 1) {
+            return analyze(expression.get(start), scope, tail);
+        }
+        Node[] body = new Node[count];
+        Iterator<TLExpression> it = expression.iterator();
+        for (int i = 0; i < start; i++) {
+            it.next();
+        }
+        for (int i = 0; i < count; i++) {
+            body[i] = analyze(it.next(), scope, tail && i == count - 1);
+        }
+        return new PrognNode(body);
+    }
+
+    LambdaNode analyzeLambda(TLListExpression params, TLListExpression expression, int start, Scope scope) {
+        Scope lambdaScope = new Scope(scope);
+        for (TLExpression param : params) {
+            lambdaScope.add((TLSymbolExpression) param);
+        }
+        return new LambdaNode(params, analyzeBody(expression, start, lambdaScope, true), engine);
+    }
+
+    private static boolean isLambda(TLExpression expression) {
+        return expression instanceof TLListExpression && !((TLListExpression) expression).isEmpty()
+                && ((TLListExpression) expression).get(0) == LAMBDA;
+    }
+
+    private Node analyzeSymbol(TLSymbolExpression symbol, Scope scope) {
+        int depth = 0;
+        for (Scope s = scope; s != null; s = s.parent) {
+            int index = s.names.lastIndexOf(symbol);
+            if (index != -1) {
+                return new LocalRefNode(depth, index);
+            }
+            depth++;
+        }
+        return new GlobalRefNode(scope.env.cell(symbol));
+    }
+
+    static class ConstantNode extends Node {
+        private final TLExpression value;
+        ConstantNode(TLExpression value) {
+            this.value = value;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) {
+            return value;
+        }
+    }
+
+    static class LocalRefNode extends Node {
+        private final int depth;
+        private final int index;
+        LocalRefNode(int depth, int index) {
+            this.depth = depth;
+            this.index = index;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) {
+            for (int i = 0; i < depth; i++) {
+                frame = frame.parent;
+            }
+            return frame.slots[index];
+        }
+    }
+
+    // Global references and definitions hold the binding's cell, so neither does a map lookup
+    static class GlobalRefNode extends Node {
+        private final TLEnvironment.Cell cell;
+        GlobalRefNode(TLEnvironment.Cell cell) {
+            this.cell = cell;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) {
+            TLExpression result = cell.value;
+            if (result == null) {
+                throw new RuntimeException("Symbol undefined: " + cell.symbol);
+            }
+            return result;
+        }
+    }
+
+    static class DefNode extends Node {
+        private final TLEnvironment.Cell cell;
+        private final Node value;
+        DefNode(TLEnvironment.Cell cell, Node value) {
+            this.cell = cell;
+            this.value = value;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) throws Exception {
+            TLExpression eValue = value.execute(env, frame);
+            cell.value = eValue;
+            return eValue;
+        }
+    }
+
+    static class LambdaNode extends Node {
+        final TLListExpression params;
+        final Node body;
+        private final Engine engine;
+        // Set when the lambda is the value of a def
+        String name;
+        LambdaNode(TLListExpression params, Node body, Engine engine) {
+            this.params = params;
+            this.body = body;
+            this.engine = engine;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) {
+            return TLLambdaFunction.of(name, params, body, env, frame, engine);
+        }
+    }
+
+    static class IfNode extends Node {
+        private final Node condition;
+        private final Node then;
+        private final Node els;
+        IfNode(Node condition, Node then, Node els) {
+            this.condition = condition;
+            this.then = then;
+            this.els = els;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) throws Exception {
+            boolean result = condition.execute(env, frame).asBoolean();
+            return (result ? then : els).execute(env, frame);
+        }
+    }
+
+    static class PrognNode extends Node {
+        private final Node[] body;
+        PrognNode(Node[] body) {
+            this.body = body;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) throws Exception {
+            for (int i = 0; i < body.length - 1; i++) {
+                body[i].execute(env, frame);
+            }
+            return body[body.length - 1].execute(env, frame);
+        }
+    }
+
+    static class LetNode extends Node {
+        private final Node[] values;
+        private final Node body;
+        LetNode(Node[] values, Node body) {
+            this.values = values;
+            this.body = body;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) throws Exception {
+            Frame localFrame = new Frame(values.length, frame);
+            for (int i = 0; i < values.length; i++) {
+                localFrame.slots[i] = values[i].execute(env, localFrame);
+            }
+            return body.execute(env, localFrame);
+        }
+    }
+
+    static class CallNode extends Node {
+        final TLExpression first;
+        final Node function;
+        final Node[] args;
+        final Engine engine;
+        CallNode(TLExpression first, Node function, Node[] args, Engine engine) {
+            this.first = first;
+            this.function = function;
+            this.args = args;
+            this.engine = engine;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) throws Exception {
+            return invoke(this.function.execute(env, frame), env, frame);
+        }
+        // Calls the already evaluated operator with the evaluated arguments
+        TLExpression invoke(TLExpression callee, TLEnvironment env, Frame frame) throws Exception {
+            TLBudget.safepoint();
+            TLFunction function = (TLFunction) callee;
+            TLListExpression args = new TLListExpression();
+            for (Node arg : this.args) {
+                args.add(arg.execute(env, frame));
+            }
+            TLProfiler profiler = TLProfiler.current();
+            // Lambdas record themselves, including when called from builtins
+            if (profiler != null && !(function instanceof TLLambdaFunction)) {
+                profiler.enter(first instanceof TLSymbolExpression ? first.toString() : function.toString());
+            }
+            try {
+                return engine.apply(function, args);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                throw new TLRuntimeException(first + ": " + function + "\n" + ex, ex);
+            } finally {
+                if (profiler != null && !(function instanceof TLLambdaFunction)) {
+                    profiler.exit();
+                }
+            }
+        }
+    }
+
+    static class ProfileNode extends Node {
+        private final Node body;
+        ProfileNode(Node body) {
+            this.body = body;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) throws Exception {
+            TLProfiler profiler = new TLProfiler();
+            profiler.start();
+            try {
+                body.execute(env, frame);
+            } finally {
+                profiler.stop();
+            }
+            return Engine.expressionOf(profiler);
+        }
+    }
+
+    static class TailCallNode extends CallNode {
+        TailCallNode(TLExpression first, Node function, Node[] args, Engine engine) {
+            super(first, function, args, engine);
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) throws Exception {
+            TLExpression function = this.function.execute(env, frame);
+            if (!(function instanceof TLLambdaFunction)) {
+                return invoke(function, env, frame);
+            }
+            TLLambdaFunction lambda = (TLLambdaFunction) function;
+            if (args.length < lambda.arity()) {
+                throw new TLRuntimeException(first + ": " + function + "\nExpected " + lambda.arity()
+                        + " arguments but got " + args.length, null);
+            }
+            Frame callFrame = lambda.newFrame();
+            for (int i = 0; i < callFrame.slots.length; i++) {
+                callFrame.slots[i] = args[i].execute(env, frame);
+            }
+            // Extra arguments are still evaluated for their side effects
+            for (int i = callFrame.slots.length; i < args.length; i++) {
+                args[i].execute(env, frame);
+            }
+            return new TailCall(lambda, callFrame);
+        }
+    }
+
+    // Each call site caches the methods it has resolved, keyed by receiver class and guarded by the
+    // argument classes, so that reflective lookup happens once per shape seen at the site
+    static class MemberCallNode extends Node {
+        // Sites that see more shapes than this replace their oldest entry
+        private static final int CACHE_SIZE = 4;
+        private final Node target;
+        private final String name;
+        private final Node[] args;
+        private volatile CacheEntry[] cache = new CacheEntry[0];
+        private int nextEviction;
+        MemberCallNode(Node target, String name, Node[] args) {
+            this.target = target;
+            this.name = name;
+            this.args = args;
+        }
+        @Override TLExpression execute(TLEnvironment env, Frame frame) throws Exception {
+            TLBudget.safepoint();
+            Object receiver = target.execute(env, frame).getValue();
+            if (receiver == null) {
+                throw new TLRuntimeException("Can't call " + name + " on null", null);
+            }
+            TLListExpression args = new TLListExpression();
+            for (Node arg : this.args) {
+                args.add(arg.execute(env, frame));
+            }
+            boolean isClass = receiver instanceof Class;
+            Class<?> receiverClass = isClass ? (Class<?>) receiver : receiver.getClass();
+            TLProfiler profiler = TLProfiler.current();
+            if (profiler != null) {
+                profiler.enter(receiverClass.getSimpleName() + "." + name);
+            }
+            try {
+                MethodInvoker invoker = lookup(receiverClass, isClass, args);
+                if (invoker == null) {
+                    invoker = Members.resolve(receiver, name, args);
+                    remember(new CacheEntry(receiverClass, isClass, args, invoker));
+                }
+                return Engine.expressionOf(invoker.invoke(receiver, args));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                throw new TLRuntimeException(". " + name + ": " + receiverClass.getName() + "\n" + ex, ex);
+            } finally {
+                if (profiler != null) {
+                    profiler.exit();
+                }
+            }
+        }
+        private MethodInvoker lookup(Class<?> receiverClass, boolean isClass, TLListExpression args) {
+            for (CacheEntry entry : cache) {
+                if (entry.matches(receiverClass, isClass, args)) {
+                    return entry.invoker;
+                }
+            }
+            return null;
+        }
+        private synchronized void remember(CacheEntry entry) {
+            CacheEntry[] cache = this.cache;
+            if (cache.length < CACHE_SIZE) {
+                cache = Arrays.copyOf(cache, cache.length + 1);
+                cache[cache.length - 1] = entry;
+            } else {
+                cache = cache.clone();
+                cache[nextEviction] = entry;
+                nextEviction = (nextEviction + 1) % CACHE_SIZE;
+            }
+            this.cache = cache;
+        }
+    }
+
+    static final class CacheEntry {
+        final Class<?> receiverClass;
+        final boolean isClass;
+        final Class<?>[] argClasses;
+        final MethodInvoker invoker;
+        CacheEntry(Class<?> receiverClass, boolean isClass, TLListExpression args, MethodInvoker invoker) {
+            this.receiverClass = receiverClass;
+            this.isClass = isClass;
+            this.argClasses = new Class<?>[args.size()];
+            int i = 0;
+            for (TLExpression arg : args) {
+                argClasses[i++] = Members.argumentClass(arg);
+            }
+            this.invoker = invoker;
+        }
+        boolean matches(Class<?> receiverClass, boolean isClass, TLListExpression args) {
+            if (receiverClass != this.receiverClass || isClass != this.isClass) {
+                return false;
+            }
+            int i = 0;
+            for (TLExpression arg : args) {
+                if (Members.argumentClass(arg) != argClasses[i++]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Returned in place of a result to have the caller's trampoline continue with another lambda
+    static final class TailCall implements TLExpression {
+        final TLLambdaFunction lambda;
+        final Frame frame;
+        TailCall(TLLambdaFunction lambda, Frame frame) {
+            this.lambda = lambda;
+            this.frame = frame;
+        }
+        @Override public Object getValue() {
+            throw new IllegalStateException("Unexpected tail call");
+        }
+        @Override public boolean asBoolean() {
+            throw new IllegalStateException("Unexpected tail call");
+        }
+    }
+}
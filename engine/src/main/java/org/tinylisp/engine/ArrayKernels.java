@@ -0,0 +1,566 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.*;
+
+import java.lang.reflect.Array;
+import java.math.BigInteger;
+
+// Numeric operations over int[], long[], and double[] arrays that loop directly over the backing
+// arrays. Operands may be two arrays of the same length, or an array and a scalar.
+//
+// Integer results stay exact: int[] results that overflow are recomputed as long[], and long[]
+// arithmetic throws on overflow. Division and anything involving a double produces double[].
+class ArrayKernels {
+
+    static final int ADD = 0;
+    static final int SUBTRACT = 1;
+    static final int MULTIPLY = 2;
+    static final int DIVIDE = 3;
+
+    static final int LT = 0;
+    static final int GT = 1;
+    static final int LE = 2;
+    static final int GE = 3;
+    static final int EQ = 4;
+
+    /* Element-wise arithmetic */
+
+    static TLExpression arithmetic(int op, TLExpression a, TLExpression b) {
+        Object x = operand(a);
+        Object y = operand(b);
+        int length = length(x, y);
+        if (op == DIVIDE || isDouble(x) || isDouble(y)) {
+            return TLArrayExpression.of(doubleArithmetic(op, x, y, length));
+        }
+        if (isInt(x) && isInt(y)) {
+            int[] result = intArithmetic(op, x, y, length);
+            if (result != null) {
+                return TLArrayExpression.of(result);
+            }
+        }
+        return TLArrayExpression.of(longArithmetic(op, x, y, length));
+    }
+
+    private static double[] doubleArithmetic(int op, Object x, Object y, int length) {
+        if (op == DIVIDE) {
+            checkNonZero(y);
+        }
+        double[] r = new double[length];
+        if (x.getClass().isArray() && y.getClass().isArray()) {
+            double[] u = doubles(x);
+            double[] v = doubles(y);
+            switch (op) {
+                case ADD:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u[i] + v[i];
+                    }
+                    break;
+                case SUBTRACT:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u[i] - v[i];
+                    }
+                    break;
+                case MULTIPLY:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u[i] * v[i];
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u[i] / v[i];
+                    }
+                    break;
+            }
+        } else if (x.getClass().isArray()) {
+            double[] u = doubles(x);
+            double v = ((Number) y).doubleValue();
+            switch (op) {
+                case ADD:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u[i] + v;
+                    }
+                    break;
+                case SUBTRACT:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u[i] - v;
+                    }
+                    break;
+                case MULTIPLY:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u[i] * v;
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u[i] / v;
+                    }
+                    break;
+            }
+        } else {
+            double u = ((Number) x).doubleValue();
+            double[] v = doubles(y);
+            switch (op) {
+                case ADD:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u + v[i];
+                    }
+                    break;
+                case SUBTRACT:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u - v[i];
+                    }
+                    break;
+                case MULTIPLY:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u * v[i];
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < length; i++) {
+                        r[i] = u / v[i];
+                    }
+                    break;
+            }
+        }
+        return r;
+    }
+
+    // Returns null if any element overflows an int
+    private static int[] intArithmetic(int op, Object x, Object y, int length) {
+        int[] r = new int[length];
+        boolean overflow = false;
+        if (x instanceof int[] && y instanceof int[]) {
+            int[] u = (int[]) x;
+            int[] v = (int[]) y;
+            switch (op) {
+                case ADD:
+                    for (int i = 0; i < length; i++) {
+                        long t = (long) u[i] + v[i];
+                        overflow |= t != (int) t;
+                        r[i] = (int) t;
+                    }
+                    break;
+                case SUBTRACT:
+                    for (int i = 0; i < length; i++) {
+                        long t = (long) u[i] - v[i];
+                        overflow |= t != (int) t;
+                        r[i] = (int) t;
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < length; i++) {
+                        long t = (long) u[i] * v[i];
+                        overflow |= t != (int) t;
+                        r[i] = (int) t;
+                    }
+                    break;
+            }
+        } else if (x instanceof int[]) {
+            int[] u = (int[]) x;
+            long v = ((Number) y).longValue();
+            switch (op) {
+                case ADD:
+                    for (int i = 0; i < length; i++) {
+                        long t = u[i] + v;
+                        overflow |= t != (int) t;
+                        r[i] = (int) t;
+                    }
+                    break;
+                case SUBTRACT:
+                    for (int i = 0; i < length; i++) {
+                        long t = u[i] - v;
+                        overflow |= t != (int) t;
+                        r[i] = (int) t;
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < length; i++) {
+                        long t = u[i] * v;
+                        overflow |= t != (int) t;
+                        r[i] = (int) t;
+                    }
+                    break;
+            }
+        } else {
+            long u = ((Number) x).longValue();
+            int[] v = (int[]) y;
+            switch (op) {
+                case ADD:
+                    for (int i = 0; i < length; i++) {
+                        long t = u + v[i];
+                        overflow |= t != (int) t;
+                        r[i] = (int) t;
+                    }
+                    break;
+                case SUBTRACT:
+                    for (int i = 0; i < length; i++) {
+                        long t = u - v[i];
+                        overflow |= t != (int) t;
+                        r[i] = (int) t;
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < length; i++) {
+                        long t = u * v[i];
+                        overflow |= t != (int) t;
+                        r[i] = (int) t;
+                    }
+                    break;
+            }
+        }
+        return overflow ? null : r;
+    }
+
+    private static long[] longArithmetic(int op, Object x, Object y, int length) {
+        long[] u = x.getClass().isArray() ? longs(x) : null;
+        long[] v = y.getClass().isArray() ? longs(y) : null;
+        long us = u == null ? ((Number) x).longValue() : 0;
+        long vs = v == null ? ((Number) y).longValue() : 0;
+        long[] r = new long[length];
+        for (int i = 0; i < length; i++) {
+            long a = u == null ? us : u[i];
+            long b = v == null ? vs : v[i];
+            switch (op) {
+                case ADD:
+                    r[i] = Math.addExact(a, b);
+                    break;
+                case SUBTRACT:
+                    r[i] = Math.subtractExact(a, b);
+                    break;
+                default:
+                    r[i] = Math.multiplyExact(a, b);
+                    break;
+            }
+        }
+        return r;
+    }
+
+    /* Reductions */
+
+    static TLExpression sum(TLExpression a) {
+        Object x = array(a);
+        if (x instanceof double[]) {
+            double sum = 0;
+            for (double d : (double[]) x) {
+                sum += d;
+            }
+            return Engine.expressionOf(sum);
+        } else if (x instanceof int[]) {
+            // Can't overflow for fewer than 2^32 elements
+            long sum = 0;
+            for (int i : (int[]) x) {
+                sum += i;
+            }
+            return Engine.expressionOf(sum);
+        }
+        long[] u = (long[]) x;
+        long sum = 0;
+        try {
+            for (long l : u) {
+                sum = Math.addExact(sum, l);
+            }
+            return Engine.expressionOf(sum);
+        } catch (ArithmeticException ex) {
+            BigInteger big = BigInteger.ZERO;
+            for (long l : u) {
+                big = big.add(BigInteger.valueOf(l));
+            }
+            return Engine.expressionOf(Engine.reduceBigInteger(big));
+        }
+    }
+
+    static TLExpression dot(TLExpression a, TLExpression b) {
+        Object x = array(a);
+        Object y = array(b);
+        int length = length(x, y);
+        if (isDouble(x) || isDouble(y)) {
+            double[] u = doubles(x);
+            double[] v = doubles(y);
+            double sum = 0;
+            for (int i = 0; i < length; i++) {
+                sum += u[i] * v[i];
+            }
+            return Engine.expressionOf(sum);
+        }
+        if (x instanceof int[] && y instanceof int[]) {
+            int[] u = (int[]) x;
+            int[] v = (int[]) y;
+            long sum = 0;
+            boolean overflow = false;
+            for (int i = 0; i < length; i++) {
+                long p = (long) u[i] * v[i];
+                long s = sum + p;
+                overflow |= ((sum ^ s) & (p ^ s)) < 0;
+                sum = s;
+            }
+            if (!overflow) {
+                return Engine.expressionOf(sum);
+            }
+        }
+        long[] u = longs(x);
+        long[] v = longs(y);
+        BigInteger sum = BigInteger.ZERO;
+        for (int i = 0; i < length; i++) {
+            sum = sum.add(BigInteger.valueOf(u[i]).multiply(BigInteger.valueOf(v[i])));
+        }
+        return Engine.expressionOf(Engine.reduceBigInteger(sum));
+    }
+
+    static TLExpression min(TLExpression a) {
+        Object x = array(a);
+        checkNotEmpty(x);
+        if (x instanceof double[]) {
+            double[] u = (double[]) x;
+            double min = u[0];
+            // As in the scalar min, the first of equal values wins and NaN is never less
+            for (int i = 1; i < u.length; i++) {
+                if (u[i] < min) {
+                    min = u[i];
+                }
+            }
+            return Engine.expressionOf(min);
+        } else if (x instanceof int[]) {
+            int[] u = (int[]) x;
+            int min = u[0];
+            for (int i = 1; i < u.length; i++) {
+                min = Math.min(min, u[i]);
+            }
+            return Engine.expressionOf(min);
+        }
+        long[] u = (long[]) x;
+        long min = u[0];
+        for (int i = 1; i < u.length; i++) {
+            min = Math.min(min, u[i]);
+        }
+        return Engine.expressionOf(min);
+    }
+
+    static TLExpression max(TLExpression a) {
+        Object x = array(a);
+        checkNotEmpty(x);
+        if (x instanceof double[]) {
+            double[] u = (double[]) x;
+            double max = u[0];
+            for (int i = 1; i < u.length; i++) {
+                if (max < u[i]) {
+                    max = u[i];
+                }
+            }
+            return Engine.expressionOf(max);
+        } else if (x instanceof int[]) {
+            int[] u = (int[]) x;
+            int max = u[0];
+            for (int i = 1; i < u.length; i++) {
+                max = Math.max(max, u[i]);
+            }
+            return Engine.expressionOf(max);
+        }
+        long[] u = (long[]) x;
+        long max = u[0];
+        for (int i = 1; i < u.length; i++) {
+            max = Math.max(max, u[i]);
+        }
+        return Engine.expressionOf(max);
+    }
+
+    /* Masks */
+
+    static TLExpression compare(int op, TLExpression a, TLExpression b) {
+        Object x = operand(a);
+        Object y = operand(b);
+        int length = length(x, y);
+        boolean[] r = new boolean[length];
+        if (isDouble(x) || isDouble(y)) {
+            double[] u = x.getClass().isArray() ? doubles(x) : null;
+            double[] v = y.getClass().isArray() ? doubles(y) : null;
+            double us = u == null ? ((Number) x).doubleValue() : 0;
+            double vs = v == null ? ((Number) y).doubleValue() : 0;
+            for (int i = 0; i < length; i++) {
+                r[i] = test(op, u == null ? us : u[i], v == null ? vs : v[i]);
+            }
+        } else {
+            long[] u = x.getClass().isArray() ? longs(x) : null;
+            long[] v = y.getClass().isArray() ? longs(y) : null;
+            long us = u == null ? ((Number) x).longValue() : 0;
+            long vs = v == null ? ((Number) y).longValue() : 0;
+            for (int i = 0; i < length; i++) {
+                r[i] = test(op, Long.compare(u == null ? us : u[i], v == null ? vs : v[i]));
+            }
+        }
+        return TLArrayExpression.of(r);
+    }
+
+    // The same tests as the scalar builtins, which reject a pair when the opposite primitive
+    // comparison holds: -0.0 and 0.0 are equal, and only mask= is false for NaN
+    private static boolean test(int op, double x, double y) {
+        switch (op) {
+            case LT:
+                return !(y <= x);
+            case GT:
+                return !(x <= y);
+            case LE:
+                return !(y < x);
+            case GE:
+                return !(x < y);
+            default:
+                return x == y;
+        }
+    }
+
+    private static boolean test(int op, int comparison) {
+        switch (op) {
+            case LT:
+                return comparison < 0;
+            case GT:
+                return comparison > 0;
+            case LE:
+                return comparison <= 0;
+            case GE:
+                return comparison >= 0;
+            default:
+                return comparison == 0;
+        }
+    }
+
+    // The elements of a where mask is true, as an array of the same type
+    static TLExpression select(TLExpression a, TLExpression mask) {
+        Object x = array(a);
+        if (!(mask instanceof TLArrayExpression) || !(mask.getValue() instanceof boolean[])) {
+            throw new IllegalArgumentException("Not a mask: " + mask);
+        }
+        boolean[] m = (boolean[]) mask.getValue();
+        int length = length(x, m);
+        int count = 0;
+        for (boolean b : m) {
+            if (b) {
+                count++;
+            }
+        }
+        if (x instanceof int[]) {
+            int[] u = (int[]) x;
+            int[] r = new int[count];
+            for (int i = 0, j = 0; i < length; i++) {
+                if (m[i]) {
+                    r[j++] = u[i];
+                }
+            }
+            return TLArrayExpression.of(r);
+        } else if (x instanceof double[]) {
+            double[] u = (double[]) x;
+            double[] r = new double[count];
+            for (int i = 0, j = 0; i < length; i++) {
+                if (m[i]) {
+                    r[j++] = u[i];
+                }
+            }
+            return TLArrayExpression.of(r);
+        }
+        long[] u = (long[]) x;
+        long[] r = new long[count];
+        for (int i = 0, j = 0; i < length; i++) {
+            if (m[i]) {
+                r[j++] = u[i];
+            }
+        }
+        return TLArrayExpression.of(r);
+    }
+
+    /* Operands */
+
+    // A numeric array, or a Long or Double scalar
+    private static Object operand(TLExpression expression) {
+        if (expression instanceof TLLongExpression) {
+            return ((TLLongExpression) expression).longValue();
+        } else if (expression instanceof TLDoubleExpression) {
+            return ((TLDoubleExpression) expression).doubleValue();
+        }
+        return array(expression);
+    }
+
+    private static Object array(TLExpression expression) {
+        Object value = expression.getValue();
+        if (value instanceof int[] || value instanceof long[] || value instanceof double[]) {
+            return value;
+        }
+        throw new IllegalArgumentException("Not a numeric array: " + expression);
+    }
+
+    private static int length(Object x, Object y) {
+        boolean xArray = x.getClass().isArray();
+        boolean yArray = y.getClass().isArray();
+        if (xArray && yArray) {
+            int length = Array.getLength(x);
+            if (length != Array.getLength(y)) {
+                throw new IllegalArgumentException("Array lengths differ: " + length + " and "
+                        + Array.getLength(y));
+            }
+            return length;
+        }
+        return Array.getLength(xArray ? x : y);
+    }
+
+    private static boolean isDouble(Object operand) {
+        return operand instanceof double[] || operand instanceof Double;
+    }
+
+    private static boolean isInt(Object operand) {
+        if (operand instanceof Long) {
+            long value = (Long) operand;
+            return value == (int) value;
+        }
+        return operand instanceof int[];
+    }
+
+    private static double[] doubles(Object array) {
+        if (array instanceof double[]) {
+            return (double[]) array;
+        }
+        double[] r;
+        if (array instanceof int[]) {
+            int[] u = (int[]) array;
+            r = new double[u.length];
+            for (int i = 0; i < u.length; i++) {
+                r[i] = u[i];
+            }
+        } else {
+            long[] u = (long[]) array;
+            r = new double[u.length];
+            for (int i = 0; i < u.length; i++) {
+                r[i] = u[i];
+            }
+        }
+        return r;
+    }
+
+    private static long[] longs(Object array) {
+        if (array instanceof long[]) {
+            return (long[]) array;
+        }
+        int[] u = (int[]) array;
+        long[] r = new long[u.length];
+        for (int i = 0; i < u.length; i++) {
+            r[i] = u[i];
+        }
+        return r;
+    }
+
+    private static void checkNonZero(Object divisor) {
+        if (divisor instanceof Number) {
+            if (((Number) divisor).doubleValue() == 0) {
+                throw new ArithmeticException("Division by zero");
+            }
+            return;
+        }
+        for (double d : doubles(divisor)) {
+            if (d == 0) {
+                throw new ArithmeticException("Division by zero");
+            }
+        }
+    }
+
+    private static void checkNotEmpty(Object array) {
+        if (Array.getLength(array) == 0) {
+            throw new IllegalArgumentException("Empty array");
+        }
+    }
+}
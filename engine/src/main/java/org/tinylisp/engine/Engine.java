@@ -1,17 +1,80 @@
 package org.tinylisp.engine;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Engine {
 
     public static final String VERSION = "@version@";
 
+    final Analyzer analyzer = new Analyzer(this);
+
+    private volatile ForkJoinPool pool;
+    private volatile EngineListener listener;
+    private volatile ProgramCache programCache;
+    private volatile int parallelThreshold = 256;
+
+    public EngineListener getListener() {
+        return listener;
+    }
+
+    // Receives the timing of parses, evaluations, and function calls; null to stop
+    public void setListener(EngineListener listener) {
+        this.listener = listener;
+    }
+
+    public ProgramCache getProgramCache() {
+        return programCache;
+    }
+
+    // Caches the programs run with execute(String) and exec; null, the default, to parse each time
+    public void setProgramCache(ProgramCache programCache) {
+        this.programCache = programCache;
+    }
+
+    // The pool used by pmap, pfilter, and preduce; defaults to the common pool
+    public ForkJoinPool getPool() {
+        ForkJoinPool pool = this.pool;
+        return pool == null ? ForkJoinPool.commonPool() : pool;
+    }
+
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Parallel primitives split their input until pieces have at most this many elements
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public void setParallelThreshold(int parallelThreshold) {
+        if (parallelThreshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive: " + parallelThreshold);
+        }
+        this.parallelThreshold = parallelThreshold;
+    }
+
     public static TLAtomExpression<?> expressionOf(Object value) {
         if (value == null) {
-            return TLJavaObjectExpression.of(null);
+            return TLJavaObjectExpression.NULL;
+        } else if (value instanceof Integer || value instanceof Long) {
+            return TLLongExpression.of(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            return TLDoubleExpression.of((Double) value);
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? TLJavaObjectExpression.TRUE : TLJavaObjectExpression.FALSE;
         } else if (value.getClass().isArray()) {
             return TLArrayExpression.of(value);
         } else {
@@ -45,16 +108,17 @@ public class Engine {
             TLMethodFunction function = new TLMethodFunction();
             function.object = object;
             function.method = method;
+            function.invoker = MethodInvoker.of(method);
             return function;
         }
         private Object object;
         private Method method;
+        private MethodInvoker invoker;
         @Override public TLExpression invoke(TLListExpression args) throws Exception {
-            Object[] jargs = new Object[args.size()];
-            for (int i = 0; i < args.size(); i++) {
-                jargs[i] = args.get(i).getValue();
-            }
-            return expressionOf(method.invoke(object, jargs));
+            return expressionOf(invoker.invoke(object, args));
+        }
+        public Method getMethod() {
+            return method;
         }
         @Override protected List<?> getParameterHelpNames() {
             List<Object> names = new ArrayList<>();
@@ -67,33 +131,107 @@ public class Engine {
 
     public static class TLLambdaFunction extends TLFunction {
         public static TLLambdaFunction of(TLListExpression params, TLListExpression body, TLEnvironment env, Engine engine) {
+            // The body is a single expression, as in (lambda params body)
+            Analyzer.Scope scope = new Analyzer.Scope(new Analyzer.Scope(env));
+            for (TLExpression param : params) {
+                scope.add((TLSymbolExpression) param);
+            }
+            return of(null, params, engine.analyzer.analyze(body, scope, true), env, null, engine);
+        }
+        static TLLambdaFunction of(String name, TLListExpression params, Analyzer.Node body, TLEnvironment env, Analyzer.Frame frame, Engine engine) {
             TLLambdaFunction lambda = new TLLambdaFunction();
+            lambda.name = name;
             lambda.params = params;
             lambda.body = body;
             lambda.env = env;
+            lambda.frame = frame;
             lambda.engine = engine;
             return lambda;
         }
+        // The name it was defined with, if any
+        private String name;
         private TLListExpression params;
-        private TLListExpression body;
+        private Analyzer.Node body;
         private TLEnvironment env;
+        private Analyzer.Frame frame;
         private Engine engine;
         @Override
         public TLExpression invoke(TLListExpression args) throws Exception {
-            TLEnvironment tempEnv = new TLEnvironment(env);
-            for (int i = 0; i < params.size(); i++) {
-                TLSymbolExpression param = (TLSymbolExpression) params.get(i);
-                TLExpression arg = args.get(i);
-                tempEnv.put(param, arg);
+            Analyzer.Frame callFrame = newFrame();
+            if (args.size() < callFrame.slots.length) {
+                throw new IndexOutOfBoundsException("Expected " + callFrame.slots.length + " arguments but got " + args.size());
+            }
+            Iterator<TLExpression> it = args.iterator();
+            for (int i = 0; i < callFrame.slots.length; i++) {
+                callFrame.slots[i] = it.next();
+            }
+            // Calls in tail position come back here instead of growing the Java stack
+            TLLambdaFunction lambda = this;
+            TLProfiler profiler = TLProfiler.current();
+            if (profiler != null) {
+                profiler.enter(getName());
+            }
+            // Tail calls don't go through Engine.apply, so they are reported here, each one lasting
+            // until its body returns a value or makes the next tail call
+            EngineListener listener = engine == null ? null : engine.getListener();
+            boolean tailCall = false;
+            long start = 0;
+            try {
+                while (true) {
+                    TLBudget.safepoint();
+                    TLExpression result;
+                    try {
+                        result = lambda.body.execute(lambda.env, callFrame);
+                    } catch (Exception ex) {
+                        if (tailCall) {
+                            listener.applied(lambda, System.nanoTime() - start, ex);
+                        }
+                        throw ex;
+                    }
+                    if (tailCall) {
+                        listener.applied(lambda, System.nanoTime() - start, null);
+                    }
+                    if (!(result instanceof Analyzer.TailCall)) {
+                        return result;
+                    }
+                    Analyzer.TailCall call = (Analyzer.TailCall) result;
+                    lambda = call.lambda;
+                    callFrame = call.frame;
+                    if (profiler != null) {
+                        // A tail call replaces the caller on the stack
+                        profiler.exit();
+                        profiler.enter(lambda.getName());
+                    }
+                    if (listener != null) {
+                        listener.applying(lambda);
+                        tailCall = true;
+                        start = System.nanoTime();
+                    }
+                }
+            } finally {
+                if (profiler != null) {
+                    profiler.exit();
+                }
             }
-            return engine.evaluate(body, tempEnv);
+        }
+        // The name it was defined with, or "lambda"
+        public String getName() {
+            return name == null ? "lambda" : name;
+        }
+        int arity() {
+            return params.size();
+        }
+        Analyzer.Frame newFrame() {
+            return new Analyzer.Frame(params.size(), frame);
         }
         @Override protected List<?> getParameterHelpNames() {
             return params.getValue();
         }
     }
 
-    public static class TLListExpression extends ArrayList<TLExpression> implements TLExpression {
+    // Persistent singly-linked list. rest() and cons() share cells with the original list in O(1);
+    // cells that have been shared are never modified, so mutators copy them first.
+    public static class TLListExpression extends AbstractList<TLExpression> implements TLExpression {
         public static TLListExpression of (Collection<?> items) {
             TLListExpression list = new TLListExpression();
             for (Object item : items) {
@@ -101,17 +239,164 @@ public class Engine {
             }
             return list;
         }
+        public static TLListExpression cons(TLExpression head, TLListExpression tail) {
+            tail.shared = true;
+            Cell cell = new Cell(head, tail.first);
+            TLListExpression list = new TLListExpression();
+            list.first = cell;
+            list.last = tail.isEmpty() ? cell : tail.last;
+            list.size = tail.size + 1;
+            list.shared = !tail.isEmpty();
+            return list;
+        }
+        private static final class Cell {
+            TLExpression value;
+            Cell next;
+            Cell(TLExpression value, Cell next) {
+                this.value = value;
+                this.next = next;
+            }
+        }
+        private Cell first;
+        private Cell last;
+        private int size;
+        private boolean shared;
         public TLListExpression() {
             super();
         }
         public TLListExpression(List<TLExpression> list) {
-            super(list);
+            super();
+            if (list instanceof TLListExpression) {
+                TLListExpression other = (TLListExpression) list;
+                other.shared = true;
+                first = other.first;
+                last = other.last;
+                size = other.size;
+                shared = true;
+            } else {
+                addAll(list);
+            }
+        }
+        public TLListExpression rest() {
+            if (size == 0) {
+                throw new IndexOutOfBoundsException("Can't take rest of empty list");
+            }
+            shared = true;
+            TLListExpression rest = new TLListExpression();
+            rest.first = first.next;
+            rest.last = size == 1 ? null : last;
+            rest.size = size - 1;
+            rest.shared = true;
+            return rest;
+        }
+        @Override public int size() {
+            return size;
+        }
+        @Override public TLExpression get(int index) {
+            return cell(index).value;
+        }
+        @Override public TLExpression set(int index, TLExpression element) {
+            own();
+            Cell cell = cell(index);
+            TLExpression old = cell.value;
+            cell.value = element;
+            return old;
+        }
+        @Override public boolean add(TLExpression element) {
+            own();
+            Cell cell = new Cell(element, null);
+            if (size == 0) {
+                first = cell;
+            } else {
+                last.next = cell;
+            }
+            last = cell;
+            size++;
+            modCount++;
+            return true;
+        }
+        @Override public void add(int index, TLExpression element) {
+            if (index == size) {
+                add(element);
+                return;
+            }
+            own();
+            if (index == 0) {
+                first = new Cell(element, first);
+            } else {
+                Cell previous = cell(index - 1);
+                previous.next = new Cell(element, previous.next);
+            }
+            size++;
+            modCount++;
+        }
+        @Override public TLExpression remove(int index) {
+            own();
+            Cell removed;
+            if (index == 0) {
+                removed = cell(0);
+                first = removed.next;
+            } else {
+                Cell previous = cell(index - 1);
+                removed = cell(index);
+                previous.next = removed.next;
+                if (removed == last) {
+                    last = previous;
+                }
+            }
+            size--;
+            if (size == 0) {
+                first = last = null;
+            }
+            modCount++;
+            return removed.value;
+        }
+        @Override public void clear() {
+            first = last = null;
+            size = 0;
+            shared = false;
+            modCount++;
+        }
+        @Override public Iterator<TLExpression> iterator() {
+            return new Iterator<TLExpression>() {
+                private Cell next = first;
+                private int remaining = size;
+                @Override public boolean hasNext() {
+                    return remaining > 0;
+                }
+                @Override public TLExpression next() {
+                    if (remaining == 0) {
+                        throw new NoSuchElementException();
+                    }
+                    TLExpression value = next.value;
+                    next = next.next;
+                    remaining--;
+                    return value;
+                }
+            };
+        }
+        @Override public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (!(o instanceof List) || ((List<?>) o).size() != size) {
+                return false;
+            }
+            Iterator<?> other = ((List<?>) o).iterator();
+            for (TLExpression expression : this) {
+                if (!Objects.equals(expression, other.next())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        @Override public int hashCode() {
+            return super.hashCode();
         }
         @Override public boolean asBoolean() {
             return !isEmpty();
         }
         public List<Object> getValue() {
-            List<Object> result = new ArrayList<>();
+            List<Object> result = new ArrayList<>(size);
             for (TLExpression expression : this) {
                 result.add(expression.getValue());
             }
@@ -120,6 +405,154 @@ public class Engine {
         @Override public String toString() {
             return listToString("(", this, " ", ")");
         }
+        private Cell cell(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            Cell cell = first;
+            for (int i = 0; i < index; i++) {
+                cell = cell.next;
+            }
+            return cell;
+        }
+        // Copy any cells shared with other lists before modifying them
+        private void own() {
+            if (!shared) {
+                return;
+            }
+            Cell copyFirst = null;
+            Cell copyLast = null;
+            Cell cell = first;
+            for (int i = 0; i < size; i++) {
+                Cell copy = new Cell(cell.value, null);
+                if (copyLast == null) {
+                    copyFirst = copy;
+                } else {
+                    copyLast.next = copy;
+                }
+                copyLast = copy;
+                cell = cell.next;
+            }
+            first = copyFirst;
+            last = copyLast;
+            shared = false;
+        }
+    }
+
+    // Lazy sequence, made of cells that are each computed from a source iterator the first time
+    // they are reached, by iteration or by car and cdr, and then kept. An element is therefore
+    // computed once however often it is traversed, and cdr takes constant time. A cell only refers
+    // to the ones after it, so a pipeline whose head isn't held on to runs in constant memory;
+    // realize() collects the elements into a list.
+    public static class TLSeqExpression implements TLExpression, Iterable<TLExpression> {
+        // Unbounded sequences can't be printed in full
+        private static final int PRINT_LIMIT = 100;
+        private static final AtomicReferenceFieldUpdater<TLSeqExpression, Object> STATE =
+                AtomicReferenceFieldUpdater.newUpdater(TLSeqExpression.class, Object.class, "state");
+        private static final Object COMPUTED = new Object();
+        // The source iterator, shared by the cells that haven't been computed yet; the thread
+        // computing this cell from it; or COMPUTED once first and rest are set
+        private volatile Object state;
+        private TLExpression first;
+        // Null at the end
+        private TLSeqExpression rest;
+        TLSeqExpression(Iterator<TLExpression> source) {
+            this.state = source;
+        }
+        // Computes this cell if it hasn't been yet; false at the end
+        private boolean step() {
+            if (state != COMPUTED) {
+                compute();
+            }
+            return rest != null;
+        }
+        @SuppressWarnings("unchecked")
+        private void compute() {
+            Thread thread = Thread.currentThread();
+            while (true) {
+                Object state = this.state;
+                if (state == COMPUTED) {
+                    return;
+                } else if (state == thread) {
+                    throw new IllegalStateException("Sequence element depends on itself");
+                } else if (state instanceof Iterator && STATE.compareAndSet(this, state, thread)) {
+                    Iterator<TLExpression> source = (Iterator<TLExpression>) state;
+                    boolean computed = false;
+                    try {
+                        if (source.hasNext()) {
+                            first = source.next();
+                            rest = new TLSeqExpression(source);
+                        }
+                        computed = true;
+                    } finally {
+                        // An ordered store is enough to publish first and rest, and cheaper than a
+                        // volatile one; the cell can be retried if the source threw
+                        STATE.lazySet(this, computed ? COMPUTED : source);
+                    }
+                    return;
+                }
+                // Another thread is computing it
+                Thread.yield();
+            }
+        }
+        public boolean isEmpty() {
+            return !step();
+        }
+        public TLExpression first() {
+            if (!step()) {
+                throw new IndexOutOfBoundsException("Index: 0");
+            }
+            return first;
+        }
+        // Empty at the end
+        public TLSeqExpression rest() {
+            return step() ? rest : this;
+        }
+        @Override public Iterator<TLExpression> iterator() {
+            return new Cursor(this);
+        }
+        public TLListExpression realize() {
+            TLListExpression list = new TLListExpression();
+            for (TLExpression expression : this) {
+                list.add(expression);
+            }
+            return list;
+        }
+        public TLSeqExpression getValue() {
+            return this;
+        }
+        @Override public boolean asBoolean() {
+            return step();
+        }
+        @Override public String toString() {
+            List<Object> items = new ArrayList<>();
+            Iterator<TLExpression> it = iterator();
+            while (it.hasNext() && items.size() < PRINT_LIMIT) {
+                items.add(it.next());
+            }
+            if (it.hasNext()) {
+                items.add("...");
+            }
+            return listToString("(", items, " ", ")");
+        }
+        // Static so that it doesn't keep the cells it has moved past reachable
+        private static class Cursor implements Iterator<TLExpression> {
+            private TLSeqExpression next;
+            Cursor(TLSeqExpression next) {
+                this.next = next;
+            }
+            @Override public boolean hasNext() {
+                return next.step();
+            }
+            @Override public TLExpression next() {
+                if (!next.step()) {
+                    throw new NoSuchElementException();
+                }
+                TLExpression value = next.first;
+                next = next.rest;
+                return value;
+            }
+        }
     }
 
     public abstract static class TLAtomExpression<T> implements TLExpression {
@@ -128,30 +561,121 @@ public class Engine {
             return value;
         }
         @Override public String toString() {
+            T value = getValue();
             return value instanceof String ? "\"" + escapeString((String) value) + '"' : String.valueOf(value);
         }
         @Override public int hashCode() {
+            T value = getValue();
             return value != null ? value.hashCode() : 0;
         }
         @Override public boolean equals(Object o) {
             if (o != null && this.getClass().equals(o.getClass())) {
-                Object oVal = ((TLAtomExpression<?>) o).value;
-                return Objects.equals(value, oVal);
+                Object oVal = ((TLAtomExpression<?>) o).getValue();
+                return Objects.equals(getValue(), oVal);
             } else {
                 return false;
             }
         }
         @Override public boolean asBoolean() {
+            T value = getValue();
             return value != null && !Boolean.FALSE.equals(value);
         }
     }
 
+    // Exact integer that fits in a long; boxes to Integer when it fits in an int
+    public static class TLLongExpression extends TLAtomExpression<Number> {
+        private static final int CACHE_LOW = -128;
+        private static final int CACHE_HIGH = 1024;
+        private static final TLLongExpression[] CACHE = new TLLongExpression[CACHE_HIGH - CACHE_LOW + 1];
+        static {
+            for (int i = 0; i < CACHE.length; i++) {
+                CACHE[i] = new TLLongExpression(i + CACHE_LOW);
+            }
+        }
+        public static TLLongExpression of(long value) {
+            if (value >= CACHE_LOW && value <= CACHE_HIGH) {
+                return CACHE[(int) value - CACHE_LOW];
+            }
+            return new TLLongExpression(value);
+        }
+        private final long longValue;
+        private TLLongExpression(long longValue) {
+            this.longValue = longValue;
+        }
+        public long longValue() {
+            return longValue;
+        }
+        @Override public Number getValue() {
+            return longValue == (int) longValue ? (Number) (int) longValue : (Number) longValue;
+        }
+        @Override public boolean asBoolean() {
+            return true;
+        }
+        @Override public String toString() {
+            return String.valueOf(longValue);
+        }
+        @Override public int hashCode() {
+            return Long.hashCode(longValue);
+        }
+        @Override public boolean equals(Object o) {
+            return o instanceof TLLongExpression && ((TLLongExpression) o).longValue == longValue;
+        }
+    }
+
+    public static class TLDoubleExpression extends TLAtomExpression<Double> {
+        public static TLDoubleExpression of(double value) {
+            return new TLDoubleExpression(value);
+        }
+        private final double doubleValue;
+        private TLDoubleExpression(double doubleValue) {
+            this.doubleValue = doubleValue;
+        }
+        public double doubleValue() {
+            return doubleValue;
+        }
+        @Override public Double getValue() {
+            return doubleValue;
+        }
+        @Override public boolean asBoolean() {
+            return true;
+        }
+        @Override public String toString() {
+            return String.valueOf(doubleValue);
+        }
+        @Override public int hashCode() {
+            return Double.hashCode(doubleValue);
+        }
+        @Override public boolean equals(Object o) {
+            return o instanceof TLDoubleExpression
+                    && Double.doubleToLongBits(((TLDoubleExpression) o).doubleValue) == Double.doubleToLongBits(doubleValue);
+        }
+    }
+
     public static class TLSymbolExpression extends TLAtomExpression<String> {
+        private static final ConcurrentMap<String, TLSymbolExpression> INTERNED = new ConcurrentHashMap<>();
         public static TLSymbolExpression of(String value) {
-            TLSymbolExpression symbol = new TLSymbolExpression();
-            symbol.value = value;
+            TLSymbolExpression symbol = INTERNED.get(value);
+            if (symbol == null) {
+                TLSymbolExpression newSymbol = new TLSymbolExpression(value);
+                symbol = INTERNED.putIfAbsent(value, newSymbol);
+                if (symbol == null) {
+                    symbol = newSymbol;
+                }
+            }
             return symbol;
         }
+        private final int hash;
+        private TLSymbolExpression(String value) {
+            this.value = value;
+            this.hash = value.hashCode();
+        }
+        @Override public int hashCode() {
+            return hash;
+        }
+        @Override public boolean equals(Object o) {
+            // Symbols are interned so there is only ever one instance per name
+            return this == o;
+        }
         @Override public String toString() {
             return value;
         }
@@ -193,8 +717,31 @@ public class Engine {
                 return ((int[]) value)[index];
             } else if (value instanceof double[]) {
                 return ((double[]) value)[index];
-            } else {
+            } else if (value instanceof Object[]) {
                 return ((Object[]) value)[index];
+            } else {
+                return Array.get(value, index);
+            }
+        }
+        // Unboxed element access for numeric arrays
+        public long getLong(int index) {
+            if (value instanceof int[]) {
+                return ((int[]) value)[index];
+            } else if (value instanceof long[]) {
+                return ((long[]) value)[index];
+            } else {
+                return ((Number) get(index)).longValue();
+            }
+        }
+        public double getDouble(int index) {
+            if (value instanceof double[]) {
+                return ((double[]) value)[index];
+            } else if (value instanceof int[]) {
+                return ((int[]) value)[index];
+            } else if (value instanceof long[]) {
+                return ((long[]) value)[index];
+            } else {
+                return ((Number) get(index)).doubleValue();
             }
         }
         public int length() {
@@ -202,17 +749,19 @@ public class Engine {
                 return ((int[]) value).length;
             } else if (value instanceof double[]) {
                 return ((double[]) value).length;
-            } else {
+            } else if (value instanceof Object[]) {
                 return ((Object[]) value).length;
+            } else {
+                return Array.getLength(value);
             }
         }
         private static Class<?> getClass(List<Object> values) {
             if (values.isEmpty()) {
                 return Object.class;
             }
-            Class<?> result = values.get(0).getClass();
+            Class<?> result = values.get(0) == null ? Object.class : values.get(0).getClass();
             for (Object value : values) {
-                if (!value.getClass().equals(result)) {
+                if (value == null || !value.getClass().equals(result)) {
                     return Object.class;
                 }
             }
@@ -229,8 +778,8 @@ public class Engine {
                     builder.append(d).append(' ');
                 }
             } else {
-                for (Object o : ((Object[]) value)) {
-                    builder.append(o).append(' ');
+                for (int i = 0; i < length(); i++) {
+                    builder.append(get(i)).append(' ');
                 }
             }
             if (builder.charAt(builder.length() - 1) == ' ') {
@@ -242,102 +791,228 @@ public class Engine {
     }
 
     public static class TLJavaObjectExpression extends TLAtomExpression<Object> {
+        public static final TLJavaObjectExpression NULL = new TLJavaObjectExpression();
+        public static final TLJavaObjectExpression TRUE = new TLJavaObjectExpression();
+        public static final TLJavaObjectExpression FALSE = new TLJavaObjectExpression();
+        static {
+            TRUE.value = Boolean.TRUE;
+            FALSE.value = Boolean.FALSE;
+        }
         public static TLJavaObjectExpression of(Object value) {
+            if (value == null) {
+                return NULL;
+            } else if (value instanceof Boolean) {
+                return (Boolean) value ? TRUE : FALSE;
+            }
             TLJavaObjectExpression jobj = new TLJavaObjectExpression();
             jobj.value = value;
             return jobj;
         }
     }
 
+    // Builtins that don't depend on an engine or session are created once and shared
+    private static final TLEnvironment BUILTINS = builtinEnvironment().freeze();
+
+    // Creates an environment backed by the shared builtins, with eval, parse, apply, exec, and the
+    // parallel primitives bound to this engine and the new environment
+    public TLEnvironment newEnvironment() {
+        final TLEnvironment environment = TLEnvironment.overlay(BUILTINS);
+        final Engine engine = this;
+        environment.put(TLSymbolExpression.of("eval"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) throws Exception {
+                return engine.evaluate(args.get(0), environment);
+            }
+        });
+        environment.put(TLSymbolExpression.of("parse"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                return engine.parse((String) args.get(0).getValue());
+            }
+        });
+        environment.put(TLSymbolExpression.of("apply"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) throws Exception {
+                TLListExpression applyArgs = new TLListExpression();
+                Iterator<TLExpression> it = args.rest().iterator();
+                while (it.hasNext()) {
+                    TLExpression arg = it.next();
+                    if (!it.hasNext() && arg instanceof TLListExpression) {
+                        applyArgs.addAll((TLListExpression) arg);
+                    } else {
+                        applyArgs.add(arg);
+                    }
+                }
+                return engine.apply((TLFunction) args.get(0), applyArgs);
+            }
+        });
+        environment.put(TLSymbolExpression.of("exec"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) throws Exception {
+                return engine.execute((String) args.get(0).getValue(), environment);
+            }
+        });
+        environment.put(TLSymbolExpression.of("pmap"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) throws Exception {
+                return new Parallel(engine).map((TLFunction) args.get(0), args.get(1));
+            }
+        });
+        environment.put(TLSymbolExpression.of("pfilter"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) throws Exception {
+                return new Parallel(engine).filter((TLFunction) args.get(0), args.get(1));
+            }
+        });
+        environment.put(TLSymbolExpression.of("preduce"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) throws Exception {
+                return new Parallel(engine).reduce((TLFunction) args.get(0), args.get(1), args.get(2));
+            }
+        });
+        return environment;
+    }
+
     public static TLEnvironment defaultEnvironment() {
+        return new Engine().newEnvironment();
+    }
+
+    private static TLEnvironment builtinEnvironment() {
         final TLEnvironment environment = new TLEnvironment();
-        final Engine engine = new Engine();
         environment.put(TLSymbolExpression.of("+"), new TLFunction() {
             @Override
             public TLExpression invoke(TLListExpression args) {
-                BigDecimal result = BigDecimal.ZERO;
+                TLExpression result = TLLongExpression.of(0);
                 for (TLExpression arg : args) {
-                    Number value = (Number) arg.getValue();
-                    result = result.add(toBigDecimal(value));
+                    result = add(result, arg);
                 }
-                return expressionOf(reduceBigDecimal(result));
+                return result;
             }
         });
         environment.put(TLSymbolExpression.of("-"), new TLFunction() {
             @Override
             public TLExpression invoke(TLListExpression args) {
-                BigDecimal result = toBigDecimal((Number) args.get(0).getValue());
-                for (TLExpression arg : args.subList(1, args.size())) {
-                    Number value = (Number) arg.getValue();
-                    result = result.subtract(toBigDecimal(value));
+                TLExpression result = args.get(0);
+                for (TLExpression arg : args.rest()) {
+                    result = subtract(result, arg);
                 }
-                return expressionOf(reduceBigDecimal(result));
+                return result;
             }
         });
         environment.put(TLSymbolExpression.of("*"), new TLFunction() {
             @Override
             public TLExpression invoke(TLListExpression args) {
-                BigDecimal result = BigDecimal.ONE;
+                TLExpression result = TLLongExpression.of(1);
                 for (TLExpression arg : args) {
-                    Number value = (Number) arg.getValue();
-                    result = result.multiply(toBigDecimal(value));
+                    result = multiply(result, arg);
                 }
-                return expressionOf(reduceBigDecimal(result));
+                return result;
             }
         });
         environment.put(TLSymbolExpression.of("/"), new TLFunction() {
             @Override
             public TLExpression invoke(TLListExpression args) {
-                BigDecimal result = toBigDecimal((Number) args.get(0).getValue());
-                for (TLExpression arg : args.subList(1, args.size())) {
-                    Number value = (Number) arg.getValue();
-                    result = result.divide(toBigDecimal(value), 16, RoundingMode.UP);
+                TLExpression result = args.get(0);
+                for (TLExpression arg : args.rest()) {
+                    result = divide(result, arg);
                 }
-                return expressionOf(reduceBigDecimal(result));
+                return result;
             }
         });
         environment.put(TLSymbolExpression.of("<"), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
-                double first = ((Number) args.get(0).getValue()).doubleValue();
-                for (TLExpression arg : args.subList(1, args.size())) {
-                    if (first >= ((Number) arg.getValue()).doubleValue()) {
-                        return expressionOf(false);
+                TLExpression first = args.get(0);
+                for (TLExpression arg : args.rest()) {
+                    if (lessOrEqual(arg, first)) {
+                        return TLJavaObjectExpression.FALSE;
                     }
                 }
-                return expressionOf(true);
+                return TLJavaObjectExpression.TRUE;
             }
         });
         environment.put(TLSymbolExpression.of(">"), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
-                double first = ((Number) args.get(0).getValue()).doubleValue();
-                for (TLExpression arg : args.subList(1, args.size())) {
-                    if (first <= ((Number) arg.getValue()).doubleValue()) {
-                        return expressionOf(false);
+                TLExpression first = args.get(0);
+                for (TLExpression arg : args.rest()) {
+                    if (lessOrEqual(first, arg)) {
+                        return TLJavaObjectExpression.FALSE;
                     }
                 }
-                return expressionOf(true);
+                return TLJavaObjectExpression.TRUE;
             }
         });
         environment.put(TLSymbolExpression.of("<="), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
-                double first = ((Number) args.get(0).getValue()).doubleValue();
-                for (TLExpression arg : args.subList(1, args.size())) {
-                    if (first > ((Number) arg.getValue()).doubleValue()) {
-                        return expressionOf(false);
+                TLExpression first = args.get(0);
+                for (TLExpression arg : args.rest()) {
+                    if (lessThan(arg, first)) {
+                        return TLJavaObjectExpression.FALSE;
                     }
                 }
-                return expressionOf(true);
+                return TLJavaObjectExpression.TRUE;
             }
         });
         environment.put(TLSymbolExpression.of(">="), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
-                double first = ((Number) args.get(0).getValue()).doubleValue();
-                for (TLExpression arg : args.subList(1, args.size())) {
-                    if (first < ((Number) arg.getValue()).doubleValue()) {
-                        return expressionOf(false);
+                TLExpression first = args.get(0);
+                for (TLExpression arg : args.rest()) {
+                    if (lessThan(first, arg)) {
+                        return TLJavaObjectExpression.FALSE;
+                    }
+                }
+                return TLJavaObjectExpression.TRUE;
+            }
+        });
+        // Numeric array kernels; + - * / also work element-wise on arrays
+        environment.put(TLSymbolExpression.of("sum"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                return ArrayKernels.sum(args.get(0));
+            }
+        });
+        environment.put(TLSymbolExpression.of("dot"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                return ArrayKernels.dot(args.get(0), args.get(1));
+            }
+        });
+        environment.put(TLSymbolExpression.of("scale"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                return ArrayKernels.arithmetic(ArrayKernels.MULTIPLY, args.get(0), args.get(1));
+            }
+        });
+        environment.put(TLSymbolExpression.of("min"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                if (args.size() == 1 && args.get(0) instanceof TLArrayExpression) {
+                    return ArrayKernels.min(args.get(0));
+                }
+                TLExpression result = args.get(0);
+                for (TLExpression arg : args.rest()) {
+                    if (lessThan(arg, result)) {
+                        result = arg;
+                    }
+                }
+                return result;
+            }
+        });
+        environment.put(TLSymbolExpression.of("max"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                if (args.size() == 1 && args.get(0) instanceof TLArrayExpression) {
+                    return ArrayKernels.max(args.get(0));
+                }
+                TLExpression result = args.get(0);
+                for (TLExpression arg : args.rest()) {
+                    if (lessThan(result, arg)) {
+                        result = arg;
                     }
                 }
-                return expressionOf(true);
+                return result;
+            }
+        });
+        String[] masks = {"mask<", "mask>", "mask<=", "mask>=", "mask="};
+        int[] maskOps = {ArrayKernels.LT, ArrayKernels.GT, ArrayKernels.LE, ArrayKernels.GE, ArrayKernels.EQ};
+        for (int i = 0; i < masks.length; i++) {
+            final int op = maskOps[i];
+            environment.put(TLSymbolExpression.of(masks[i]), new TLFunction() {
+                @Override public TLExpression invoke(TLListExpression args) {
+                    return ArrayKernels.compare(op, args.get(0), args.get(1));
+                }
+            });
+        }
+        environment.put(TLSymbolExpression.of("select"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                return ArrayKernels.select(args.get(0), args.get(1));
             }
         });
         environment.put(TLSymbolExpression.of("is"), new TLFunction() {
@@ -357,31 +1032,40 @@ public class Engine {
         environment.alias(TLSymbolExpression.of("eq"), TLSymbolExpression.of("="));
         environment.put(TLSymbolExpression.of("car"), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
+                if (args.get(0) instanceof TLSeqExpression) {
+                    return ((TLSeqExpression) args.get(0)).first();
+                }
                 TLListExpression arg = (TLListExpression) args.get(0);
                 return arg.get(0);
             }
         });
         environment.put(TLSymbolExpression.of("cdr"), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
+                if (args.get(0) instanceof TLSeqExpression) {
+                    return ((TLSeqExpression) args.get(0)).rest();
+                }
                 TLListExpression arg = (TLListExpression) args.get(0);
-                return new TLListExpression(arg.subList(1, arg.size()));
+                return arg.rest();
             }
         });
         environment.put(TLSymbolExpression.of("cons"), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
-                TLListExpression result = new TLListExpression();
-                result.add(args.get(0));
                 TLExpression rest = args.get(1);
                 if (rest instanceof TLListExpression) {
-                    result.addAll((TLListExpression) rest);
+                    return TLListExpression.cons(args.get(0), (TLListExpression) rest);
                 } else {
+                    TLListExpression result = new TLListExpression();
+                    result.add(args.get(0));
                     result.add(rest);
+                    return result;
                 }
-                return result;
             }
         });
         environment.put(TLSymbolExpression.of("length"), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
+                if (args.get(0) instanceof TLSeqExpression) {
+                    return expressionOf(Seqs.count(Seqs.consume(args, 0)));
+                }
                 TLExpression listOrArray = args.get(0);
                 if (listOrArray instanceof TLArrayExpression) {
                     return expressionOf(((TLArrayExpression) listOrArray).length());
@@ -399,9 +1083,14 @@ public class Engine {
             @Override public TLExpression invoke(TLListExpression args) throws Exception {
                 TLListExpression result = new TLListExpression();
                 TLFunction function = (TLFunction) args.get(0);
+                if (!(args.get(1) instanceof TLListExpression)) {
+                    return Seqs.map(function, args.get(1));
+                }
                 TLListExpression list = (TLListExpression) args.get(1);
                 for (TLExpression arg : list) {
-                    result.add(function.invoke(new TLListExpression(Collections.singletonList(arg))));
+                    TLListExpression functionArgs = new TLListExpression();
+                    functionArgs.add(arg);
+                    result.add(function.invoke(functionArgs));
                 }
                 return result;
             }
@@ -409,6 +1098,9 @@ public class Engine {
         environment.put(TLSymbolExpression.of("nth"), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
                 int n = (Integer) args.get(0).getValue();
+                if (args.get(1) instanceof TLSeqExpression) {
+                    return Seqs.nth(n, Seqs.consume(args, 1));
+                }
                 TLExpression listOrArray = args.get(1);
                 if (listOrArray instanceof TLArrayExpression) {
                     return expressionOf(((TLArrayExpression) listOrArray).get(n));
@@ -417,38 +1109,98 @@ public class Engine {
                 }
             }
         });
-        environment.put(TLSymbolExpression.of("eval"), new TLFunction() {
-            @Override public TLExpression invoke(TLListExpression args) throws Exception {
-                return engine.evaluate(args.get(0), environment);
+        // Lazy sequences; map above and filter, take, and drop return lists when given lists
+        environment.put(TLSymbolExpression.of("range"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                switch (args.size()) {
+                    case 0:
+                        return Seqs.range(expressionOf(0), null, expressionOf(1));
+                    case 1:
+                        return Seqs.range(expressionOf(0), args.get(0), expressionOf(1));
+                    case 2:
+                        return Seqs.range(args.get(0), args.get(1), expressionOf(1));
+                    default:
+                        return Seqs.range(args.get(0), args.get(1), args.get(2));
+                }
             }
         });
-        environment.put(TLSymbolExpression.of("parse"), new TLFunction() {
+        environment.put(TLSymbolExpression.of("iterate"), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
-                return engine.parse((String) args.get(0).getValue());
+                return Seqs.iterate((TLFunction) args.get(0), args.get(1));
             }
         });
-        environment.put(TLSymbolExpression.of("apply"), new TLFunction() {
-            @Override public TLExpression invoke(TLListExpression args) throws Exception {
-                TLListExpression applyArgs = new TLListExpression(args.subList(1, args.size()));
-                TLExpression last = applyArgs.get(applyArgs.size() - 1);
-                if (last instanceof TLListExpression) {
-                    applyArgs.remove(applyArgs.size() - 1);
-                    applyArgs.addAll((TLListExpression) last);
+        environment.put(TLSymbolExpression.of("filter"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                TLSeqExpression result = Seqs.filter((TLFunction) args.get(0), args.get(1));
+                return args.get(1) instanceof TLListExpression ? result.realize() : result;
+            }
+        });
+        environment.put(TLSymbolExpression.of("take"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                TLSeqExpression result = Seqs.take(((Number) args.get(0).getValue()).longValue(), args.get(1));
+                return args.get(1) instanceof TLListExpression ? result.realize() : result;
+            }
+        });
+        environment.put(TLSymbolExpression.of("drop"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                long n = ((Number) args.get(0).getValue()).longValue();
+                if (args.get(1) instanceof TLListExpression) {
+                    TLListExpression list = (TLListExpression) args.get(1);
+                    for (long i = 0; i < n && !list.isEmpty(); i++) {
+                        list = list.rest();
+                    }
+                    return list;
                 }
-                return engine.apply((TLFunction) args.get(0), applyArgs);
+                return Seqs.drop(n, args.get(1));
             }
         });
-        environment.put(TLSymbolExpression.of("exec"), new TLFunction() {
+        environment.put(TLSymbolExpression.of("realize"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                TLExpression seq = args.get(0);
+                return seq instanceof TLSeqExpression ? ((TLSeqExpression) seq).realize() : seq;
+            }
+        });
+        // Transducers
+        environment.put(TLSymbolExpression.of("mapping"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                return Transducers.mapping((TLFunction) args.get(0));
+            }
+        });
+        environment.put(TLSymbolExpression.of("filtering"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                return Transducers.filtering((TLFunction) args.get(0));
+            }
+        });
+        environment.put(TLSymbolExpression.of("taking"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                return Transducers.taking(((Number) args.get(0).getValue()).longValue());
+            }
+        });
+        environment.put(TLSymbolExpression.of("comp"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) {
+                return Transducers.comp(args);
+            }
+        });
+        environment.put(TLSymbolExpression.of("transduce"), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) throws Exception {
-                return engine.execute((String) args.get(0).getValue(), environment);
+                return Transducers.transduce((TLFunction) args.get(0), (TLFunction) args.get(1), args.get(2), Seqs.consume(args, 3));
+            }
+        });
+        environment.put(TLSymbolExpression.of("into"), new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) throws Exception {
+                if (args.size() == 2) {
+                    return Transducers.into(args.get(0), null, Seqs.consume(args, 1));
+                }
+                return Transducers.into(args.get(0), (TLFunction) args.get(1), Seqs.consume(args, 2));
             }
         });
         environment.put(TLSymbolExpression.of("format"), new TLFunction() {
             @Override public TLExpression invoke(TLListExpression args) {
                 String fmt = (String) args.get(0).getValue();
                 Object[] fmtArgs = new Object[args.size() - 1];
-                for (int i = 1; i < args.size(); i++) {
-                    fmtArgs[i - 1] = args.get(i).getValue();
+                int i = 0;
+                for (TLExpression arg : args.rest()) {
+                    fmtArgs[i++] = arg.getValue();
                 }
                 return Engine.expressionOf(String.format(fmt, fmtArgs));
             }
@@ -456,12 +1208,164 @@ public class Engine {
         return environment;
     }
 
-    public static class TLEnvironment extends HashMap<TLSymbolExpression, TLExpression> {
+    public static class TLEnvironment extends AbstractMap<TLSymbolExpression, TLExpression> {
+        // Each binding lives in a cell that analyzed code references directly. Cells are never
+        // removed; removing a binding empties its cell.
+        private final ConcurrentMap<TLSymbolExpression, Cell> cells = new ConcurrentHashMap<>();
+        // An overlay reads through to its frozen base until it creates its own cell for a symbol,
+        // which starts out with the base's value
+        private final TLEnvironment base;
+        private volatile boolean frozen;
         public TLEnvironment() {
-            super();
+            this.base = null;
         }
         public TLEnvironment(Map<TLSymbolExpression, TLExpression> env) {
-            super(env);
+            this.base = null;
+            putAll(env);
+        }
+        private TLEnvironment(TLEnvironment base) {
+            this.base = base;
+        }
+        static TLEnvironment overlay(TLEnvironment base) {
+            if (!base.frozen) {
+                throw new IllegalStateException("Base environment must be frozen");
+            }
+            return new TLEnvironment(base);
+        }
+        TLEnvironment freeze() {
+            frozen = true;
+            return this;
+        }
+        Cell cell(TLSymbolExpression symbol) {
+            Cell cell = cells.get(symbol);
+            if (cell == null) {
+                checkNotFrozen();
+                Cell created = new Cell(symbol);
+                if (base != null) {
+                    created.value = base.get(symbol);
+                }
+                cell = cells.putIfAbsent(symbol, created);
+                if (cell == null) {
+                    cell = created;
+                }
+            }
+            return cell;
+        }
+        private void checkNotFrozen() {
+            if (frozen) {
+                throw new UnsupportedOperationException("Environment is frozen");
+            }
+        }
+        @Override public TLExpression get(Object key) {
+            Cell cell = cells.get(key);
+            if (cell != null) {
+                return cell.value;
+            }
+            return base == null ? null : base.get(key);
+        }
+        @Override public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+        @Override public TLExpression put(TLSymbolExpression key, TLExpression value) {
+            checkNotFrozen();
+            Cell cell = cell(key);
+            TLExpression previous = cell.value;
+            cell.value = value;
+            return previous;
+        }
+        @Override public TLExpression remove(Object key) {
+            if (!(key instanceof TLSymbolExpression) || get(key) == null) {
+                return null;
+            }
+            // Shadows any binding in the base
+            Cell cell = cell((TLSymbolExpression) key);
+            TLExpression previous = cell.value;
+            cell.value = null;
+            return previous;
+        }
+        @Override public Set<Entry<TLSymbolExpression, TLExpression>> entrySet() {
+            return new AbstractSet<Entry<TLSymbolExpression, TLExpression>>() {
+                @Override public Iterator<Entry<TLSymbolExpression, TLExpression>> iterator() {
+                    final Iterator<Cell> own = cells.values().iterator();
+                    final Iterator<Cell> inherited = base == null ? Collections.<Cell>emptyIterator()
+                            : base.cells.values().iterator();
+                    return new Iterator<Entry<TLSymbolExpression, TLExpression>>() {
+                        private Cell next = advance();
+                        private Cell current;
+                        private Cell advance() {
+                            while (own.hasNext()) {
+                                Cell cell = own.next();
+                                if (cell.value != null) {
+                                    return cell;
+                                }
+                            }
+                            while (inherited.hasNext()) {
+                                Cell cell = inherited.next();
+                                if (cell.value != null && !cells.containsKey(cell.symbol)) {
+                                    return cell;
+                                }
+                            }
+                            return null;
+                        }
+                        @Override public boolean hasNext() {
+                            return next != null;
+                        }
+                        @Override public Entry<TLSymbolExpression, TLExpression> next() {
+                            if (next == null) {
+                                throw new NoSuchElementException();
+                            }
+                            current = next;
+                            next = advance();
+                            return current;
+                        }
+                        @Override public void remove() {
+                            if (current == null) {
+                                throw new IllegalStateException();
+                            }
+                            TLEnvironment.this.remove(current.symbol);
+                            current = null;
+                        }
+                    };
+                }
+                @Override public int size() {
+                    int size = 0;
+                    for (Entry<TLSymbolExpression, TLExpression> ignored : this) {
+                        size++;
+                    }
+                    return size;
+                }
+            };
+        }
+        static final class Cell implements Entry<TLSymbolExpression, TLExpression> {
+            final TLSymbolExpression symbol;
+            TLExpression value;
+            Cell(TLSymbolExpression symbol) {
+                this.symbol = symbol;
+            }
+            @Override public TLSymbolExpression getKey() {
+                return symbol;
+            }
+            @Override public TLExpression getValue() {
+                return value;
+            }
+            @Override public TLExpression setValue(TLExpression value) {
+                if (value == null) {
+                    throw new NullPointerException();
+                }
+                TLExpression previous = this.value;
+                this.value = value;
+                return previous;
+            }
+            @Override public boolean equals(Object o) {
+                if (!(o instanceof Entry)) {
+                    return false;
+                }
+                Entry<?, ?> e = (Entry<?, ?>) o;
+                return symbol.equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+            }
+            @Override public int hashCode() {
+                return symbol.hashCode() ^ (value == null ? 0 : value.hashCode());
+            }
         }
         public TLExpression alias(TLSymbolExpression from, TLSymbolExpression to) {
             return put(to, get(from));
@@ -480,169 +1384,94 @@ public class Engine {
     }
 
     public TLExpression apply(TLFunction function, TLListExpression arguments) throws Exception {
-        return function.invoke(arguments);
+        EngineListener listener = this.listener;
+        if (listener == null) {
+            return function.invoke(arguments);
+        }
+        listener.applying(function);
+        long start = System.nanoTime();
+        try {
+            TLExpression result = function.invoke(arguments);
+            listener.applied(function, System.nanoTime() - start, null);
+            return result;
+        } catch (Exception ex) {
+            listener.applied(function, System.nanoTime() - start, ex);
+            throw ex;
+        }
     }
 
     public TLExpression evaluate(TLExpression object, TLEnvironment environment) throws Exception {
-        if (object instanceof TLSymbolExpression) {
-            TLSymbolExpression symbol = (TLSymbolExpression) object;
-            TLExpression result = environment.get(symbol);
-            if (result == null) {
-                throw new RuntimeException("Symbol undefined: " + symbol);
-            }
-            return result;
-        } else if (object instanceof TLAtomExpression) {
-            return object;
-        } else if (object instanceof TLListExpression) {
-            TLListExpression expression = (TLListExpression) object;
-            if (expression.isEmpty()) {
-                // Empty list is nil/false
-                return expression;
-            }
-            // The first item in a list must be a symbol
-            TLExpression first = expression.get(0);
-            if (isSymbol(first, "def")) {
-                TLSymbolExpression name = (TLSymbolExpression) expression.get(1);
-                TLExpression value = expression.get(2);
-                TLExpression eValue = evaluate(value, environment);
-                environment.put(name, eValue);
-                return eValue;
-            } else if (isSymbol(first, "lambda")) {
-                TLListExpression params = (TLListExpression) expression.get(1);
-                TLListExpression body = new TLListExpression(expression.subList(2, expression.size()));
-                body.add(0, TLSymbolExpression.of("progn"));
-                return TLLambdaFunction.of(params, body, environment, this);
-            } else if (isSymbol(first, "if")) {
-                TLExpression condition = expression.get(1);
-                TLExpression then = expression.get(2);
-                TLListExpression els = new TLListExpression(expression.subList(3, expression.size()));
-                els.add(0, TLSymbolExpression.of("progn"));
-                boolean result = evaluate(condition, environment).asBoolean();
-                return evaluate(result ? then : els, environment);
-            } else if (isSymbol(first, "quote")) {
-                return expression.get(1);
-            } else if (isSymbol(first, "progn")) {
-                TLExpression result = expressionOf(null);
-                for (TLExpression exp : expression.subList(1, expression.size())) {
-                    result = evaluate(exp, environment);
-                }
-                return result;
-            } else if (isSymbol(first, "let*")) {
-                TLListExpression defs = (TLListExpression) expression.get(1);
-                TLListExpression body = new TLListExpression(expression.subList(2, expression.size()));
-                body.add(0, TLSymbolExpression.of("progn"));
-                TLEnvironment localEnvironment = new TLEnvironment(environment);
-                for (TLExpression exp : defs) {
-                    TLListExpression def = (TLListExpression) exp;
-                    TLSymbolExpression symbol = (TLSymbolExpression) def.get(0);
-                    localEnvironment.put(symbol, evaluate(def.get(1), localEnvironment));
-                }
-                return evaluate(body, localEnvironment);
-            } else {
-                // First item wasn't a special form so it must evaluate to a function
-                TLFunction function = (TLFunction) evaluate(first, environment);
-                TLListExpression args = new TLListExpression();
-                for (TLExpression exp : expression.subList(1, expression.size())) {
-                    args.add(evaluate(exp, environment));
-                }
-                try {
-                    return apply(function, args);
-                } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
-                    throw new TLRuntimeException(first + ": " + function + "\n" + ex, ex);
-                }
-            }
-        } else {
-            throw new IllegalArgumentException("Can't evaluate " + object);
-        }
+        return evaluate(object, null, environment);
     }
 
-    public TLExpression parse(String input) {
-        ArrayList<String> tokens = tokenize(input);
-        TLExpression expression = readTokens(tokens);
-        if (tokens.isEmpty()) {
-            return expression;
-        } else {
-            TLListExpression result = new TLListExpression();
-            result.add(TLSymbolExpression.of("progn"));
-            result.add(expression);
-            while (!tokens.isEmpty()) {
-                result.add(readTokens(tokens));
-            }
+    // Reuses the analysis cached in entry if it was done for the same environment
+    private TLExpression evaluate(TLExpression object, ProgramCache.Entry entry, TLEnvironment environment) throws Exception {
+        EngineListener listener = this.listener;
+        if (listener == null) {
+            return analyze(object, entry, environment).execute(environment, null);
+        }
+        listener.evaluating(object);
+        long start = System.nanoTime();
+        try {
+            TLExpression result = analyze(object, entry, environment).execute(environment, null);
+            listener.evaluated(System.nanoTime() - start, null);
             return result;
+        } catch (Exception ex) {
+            listener.evaluated(System.nanoTime() - start, ex);
+            throw ex;
         }
     }
 
-    private TLExpression readTokens(ArrayList<String> tokens) {
-        String token = popToNext(tokens);
-        tokens.remove(0);
-        switch (token) {
-            case "(": {
-                TLListExpression expression = new TLListExpression();
-                while (!")".equals(popToNext(tokens))) {
-                    expression.add(readTokens(tokens));
-                }
-                tokens.remove(0);
-                return expression;
-            }
-            case "[":
-                List<Object> values = new ArrayList<>();
-                while (!"]".equals(popToNext(tokens))) {
-                    // Arrays can only contain atoms
-                    TLAtomExpression<?> atom = (TLAtomExpression<?>) readTokens(tokens);
-                    values.add(atom.getValue());
-                }
-                tokens.remove(0);
-                return TLArrayExpression.from(values);
-            case "\"":
-                String string = tokens.remove(0);
-                tokens.remove(0);
-                return TLJavaObjectExpression.of(string);
-            case "'": {
-                TLListExpression expression = new TLListExpression();
-                expression.add(atomize("quote"));
-                expression.add(readTokens(tokens));
-                return expression;
-            }
-            default:
-                return atomize(token);
+    private Analyzer.Node analyze(TLExpression object, ProgramCache.Entry entry, TLEnvironment environment) {
+        if (entry == null) {
+            return analyzer.analyze(object, new Analyzer.Scope(environment));
+        }
+        Analyzer.Node node = entry.analyzed(environment);
+        if (node == null) {
+            node = analyzer.analyze(object, new Analyzer.Scope(environment));
+            entry.setAnalyzed(environment, node);
         }
+        return node;
     }
 
-    private String popToNext(ArrayList<String> tokens) {
-        if (tokens.isEmpty()) {
-            throw new IllegalArgumentException("End of token list");
+    public TLExpression parse(String input) {
+        EngineListener listener = this.listener;
+        if (listener == null) {
+            return parseProgram(input);
         }
-        while (true) {
-            String token = tokens.get(0);
-            if (token.trim().isEmpty()) {
-                tokens.remove(0);
-            } else if (";".equals(token)) {
-                tokens.subList(0, 2).clear();
-            } else {
-                return token;
-            }
+        listener.parsing();
+        long start = System.nanoTime();
+        try {
+            TLExpression result = parseProgram(input);
+            listener.parsed(input.length(), System.nanoTime() - start, null);
+            return result;
+        } catch (RuntimeException ex) {
+            listener.parsed(input.length(), System.nanoTime() - start, ex);
+            throw ex;
         }
     }
 
-    private TLExpression atomize(String token) {
+    private TLExpression parseProgram(String input) {
+        TLReader reader = new TLReader(new StringReader(input));
         try {
-            return TLJavaObjectExpression.of(Integer.parseInt(token));
-        } catch (NumberFormatException ex) {
-            // Not an int
-        }
-        try {
-            return TLJavaObjectExpression.of(Double.parseDouble(token));
-        } catch (NumberFormatException ex) {
-            // Not a double
-        }
-        if ("null".equals(token)) {
-            return TLJavaObjectExpression.of(null);
-        } else if ("true".equals(token)) {
-            return TLJavaObjectExpression.of(true);
-        } else if ("false".equals(token)) {
-            return TLJavaObjectExpression.of(false);
-        } else {
-            return TLSymbolExpression.of(token);
+            TLExpression expression = reader.read();
+            if (expression == null) {
+                throw new IllegalArgumentException("Unexpected end of input");
+            }
+            TLExpression next = reader.read();
+            if (next == null) {
+                return expression;
+            }
+            TLListExpression result = new TLListExpression();
+            result.add(TLSymbolExpression.of("progn"));
+            result.add(expression);
+            do {
+                result.add(next);
+            } while ((next = reader.read()) != null);
+            return result;
+        } catch (IOException ex) {
+            // Can't happen when reading from a string
+            throw new IllegalStateException(ex);
         }
     }
 
@@ -694,7 +1523,362 @@ public class Engine {
     }
 
     public TLExpression execute(String program, TLEnvironment environment) throws Exception {
-        return evaluate(parse(program), environment);
+        EngineListener listener = this.listener;
+        if (listener == null) {
+            return executeProgram(program, environment);
+        }
+        listener.executing();
+        long start = System.nanoTime();
+        try {
+            TLExpression result = executeProgram(program, environment);
+            listener.executed(System.nanoTime() - start, null);
+            return result;
+        } catch (Exception ex) {
+            listener.executed(System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    private TLExpression executeProgram(String program, TLEnvironment environment) throws Exception {
+        ProgramCache cache = this.programCache;
+        if (cache == null) {
+            return evaluate(parse(program), environment);
+        }
+        ProgramCache.Entry entry = cache.get(program);
+        if (entry == null) {
+            entry = cache.put(program, parse(program));
+        }
+        return evaluate(entry.program, entry, environment);
+    }
+
+    // Evaluates under a budget, which stays in effect for pmap, pfilter, and preduce workers
+    public TLExpression evaluate(TLExpression object, TLEnvironment environment, TLBudget budget) throws Exception {
+        TLBudget previous = TLBudget.enter(budget);
+        try {
+            return evaluate(object, environment);
+        } finally {
+            TLBudget.exit(previous);
+        }
+    }
+
+    public TLExpression execute(String program, TLEnvironment environment, TLBudget budget) throws Exception {
+        TLBudget previous = TLBudget.enter(budget);
+        try {
+            return execute(program, environment);
+        } finally {
+            TLBudget.exit(previous);
+        }
+    }
+
+    // Reads and evaluates one top-level form at a time so that earlier forms can be collected
+    // before the rest of the program has been read. Returns the value of the last form.
+    public TLExpression execute(Reader program, TLEnvironment environment) throws Exception {
+        EngineListener listener = this.listener;
+        if (listener == null) {
+            return executeForms(program, environment);
+        }
+        listener.executing();
+        long start = System.nanoTime();
+        try {
+            TLExpression result = executeForms(program, environment);
+            listener.executed(System.nanoTime() - start, null);
+            return result;
+        } catch (Exception ex) {
+            listener.executed(System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    private TLExpression executeForms(Reader program, TLEnvironment environment) throws Exception {
+        TLReader reader = new TLReader(program);
+        TLExpression result = null;
+        for (TLExpression form = read(reader); form != null; form = read(reader)) {
+            result = evaluate(form, environment);
+        }
+        if (result == null) {
+            throw new IllegalArgumentException("Unexpected end of input");
+        }
+        return result;
+    }
+
+    // Reads the top-level forms of a program one at a time without evaluating them
+    public TLFormReader newFormReader(Reader program) {
+        return new TLFormReader(new TLReader(program));
+    }
+
+    public class TLFormReader {
+        private final TLReader reader;
+        private TLFormReader(TLReader reader) {
+            this.reader = reader;
+        }
+        // The next form, or null at the end of the program
+        public TLExpression read() throws IOException {
+            return Engine.this.read(reader);
+        }
+    }
+
+    private TLExpression read(TLReader reader) throws IOException {
+        EngineListener listener = this.listener;
+        if (listener == null) {
+            return reader.read();
+        }
+        listener.parsing();
+        long offset = reader.offset();
+        long start = System.nanoTime();
+        try {
+            TLExpression form = reader.read();
+            // Reaching the end is reported too, with any whitespace and comments after the last form
+            listener.parsed(reader.offset() - offset, System.nanoTime() - start, null);
+            return form;
+        } catch (IOException | RuntimeException ex) {
+            listener.parsed(reader.offset() - offset, System.nanoTime() - start, ex);
+            throw ex;
+        }
+    }
+
+    public TLExpression execute(Reader program, TLEnvironment environment, TLBudget budget) throws Exception {
+        TLBudget previous = TLBudget.enter(budget);
+        try {
+            return execute(program, environment);
+        } finally {
+            TLBudget.exit(previous);
+        }
+    }
+
+    // Records the calls, total time, and self time of each function while started, naming lambdas
+    // by their def and builtins by the symbol they were called through. Only calls on the thread
+    // that started it are recorded. Time spent in recursive calls counts toward total time once.
+    public static class TLProfiler {
+        private static final ThreadLocal<TLProfiler> CURRENT = new ThreadLocal<>();
+        // Started profilers on any thread; while there are none, calls skip the thread local
+        private static final AtomicInteger ACTIVE = new AtomicInteger();
+        public static class Entry {
+            private final String name;
+            private long calls;
+            private long totalNanos;
+            private long selfNanos;
+            // Activations on the stack, and when the outermost one started
+            private int active;
+            private long outerStart;
+            Entry(String name) {
+                this.name = name;
+            }
+            public String getName() {
+                return name;
+            }
+            public long getCalls() {
+                return calls;
+            }
+            public long getTotalNanos() {
+                return totalNanos;
+            }
+            public long getSelfNanos() {
+                return selfNanos;
+            }
+        }
+        // Call tree node; one per distinct stack
+        private static class Node {
+            final Entry entry;
+            final Node parent;
+            final Map<String, Node> children = new HashMap<>();
+            long selfNanos;
+            Node(Entry entry, Node parent) {
+                this.entry = entry;
+                this.parent = parent;
+            }
+        }
+        private final Map<String, Entry> entries = new HashMap<>();
+        private final Node root = new Node(null, null);
+        private Node current = root;
+        // When the current node last started accruing self time
+        private long mark;
+        private TLProfiler previous;
+        private boolean started;
+        public void start() {
+            if (started) {
+                throw new IllegalStateException("Profiler already started");
+            }
+            started = true;
+            previous = CURRENT.get();
+            CURRENT.set(this);
+            ACTIVE.incrementAndGet();
+            mark = System.nanoTime();
+        }
+        public void stop() {
+            if (!started || CURRENT.get() != this) {
+                throw new IllegalStateException("Profiler not started on this thread");
+            }
+            while (current != root) {
+                exit();
+            }
+            started = false;
+            ACTIVE.decrementAndGet();
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+            previous = null;
+        }
+        static TLProfiler current() {
+            return ACTIVE.get() == 0 ? null : CURRENT.get();
+        }
+        void enter(String name) {
+            long now = System.nanoTime();
+            accrue(now);
+            Node node = current.children.get(name);
+            if (node == null) {
+                Entry entry = entries.get(name);
+                if (entry == null) {
+                    entry = new Entry(name);
+                    entries.put(name, entry);
+                }
+                node = new Node(entry, current);
+                current.children.put(name, node);
+            }
+            Entry entry = node.entry;
+            entry.calls++;
+            if (entry.active++ == 0) {
+                entry.outerStart = now;
+            }
+            current = node;
+        }
+        void exit() {
+            long now = System.nanoTime();
+            accrue(now);
+            Entry entry = current.entry;
+            if (--entry.active == 0) {
+                entry.totalNanos += now - entry.outerStart;
+            }
+            current = current.parent;
+        }
+        private void accrue(long now) {
+            long elapsed = now - mark;
+            current.selfNanos += elapsed;
+            if (current.entry != null) {
+                current.entry.selfNanos += elapsed;
+            }
+            mark = now;
+        }
+        // Sorted by self time, highest first
+        public List<Entry> getEntries() {
+            List<Entry> result = new ArrayList<>(entries.values());
+            Collections.sort(result, new Comparator<Entry>() {
+                @Override public int compare(Entry a, Entry b) {
+                    return Long.compare(b.selfNanos, a.selfNanos);
+                }
+            });
+            return result;
+        }
+        // One "caller;callee self-microseconds" line per stack, as read by flame graph tools
+        public String collapsed() {
+            StringBuilder builder = new StringBuilder();
+            collapse(root, "", builder);
+            return builder.toString();
+        }
+        private static void collapse(Node node, String stack, StringBuilder builder) {
+            for (Node child : node.children.values()) {
+                String name = child.entry.name.replace(';', ':').replace(' ', '_');
+                String childStack = stack.isEmpty() ? name : stack + ";" + name;
+                long micros = child.selfNanos / 1000;
+                if (micros > 0) {
+                    builder.append(childStack).append(' ').append(micros).append('\n');
+                }
+                collapse(child, childStack, builder);
+            }
+        }
+        @Override public String toString() {
+            StringBuilder builder = new StringBuilder(String.format("%-24s %10s %12s %12s", "function", "calls", "total ms", "self ms"));
+            for (Entry entry : getEntries()) {
+                builder.append(String.format("%n%-24s %10d %12.3f %12.3f", entry.name, entry.calls,
+                        entry.totalNanos / 1e6, entry.selfNanos / 1e6));
+            }
+            return builder.toString();
+        }
+    }
+
+    // Limits an evaluation. Function calls, tail calls, and elements of unbounded sequences each
+    // take a step; once the steps or time run out, or after cancel() or an interrupt of the
+    // evaluating thread, the next step throws a TLRuntimeException. Steps taken on parallel
+    // workers are counted without synchronization, so the step limit is approximate there.
+    public static class TLBudget {
+        public static final long UNLIMITED = Long.MAX_VALUE;
+        private static final ThreadLocal<TLBudget> CURRENT = new ThreadLocal<>();
+        // Budgets in effect on any thread; while there are none, steps skip the thread local
+        private static final AtomicInteger ACTIVE = new AtomicInteger();
+        // The clock and the interrupt flag are only checked every this many steps
+        private static final int CHECK_INTERVAL = 1024;
+        private final long maxSteps;
+        private final long timeoutMillis;
+        private final long start = System.nanoTime();
+        private long steps;
+        private volatile boolean cancelled;
+        // Only cancel() or an interrupt stop the evaluation
+        public TLBudget() {
+            this(UNLIMITED, UNLIMITED);
+        }
+        // The time limit counts from when the budget is created
+        public TLBudget(long maxSteps, long timeoutMillis) {
+            if (maxSteps < 0 || timeoutMillis < 0) {
+                throw new IllegalArgumentException("Limits can't be negative");
+            }
+            this.maxSteps = maxSteps;
+            this.timeoutMillis = timeoutMillis;
+        }
+        public void cancel() {
+            cancelled = true;
+        }
+        public boolean isCancelled() {
+            return cancelled;
+        }
+        public long getSteps() {
+            return steps;
+        }
+        void step() {
+            long steps = ++this.steps;
+            if (cancelled) {
+                throw new TLRuntimeException("Evaluation cancelled", null);
+            } else if (steps > maxSteps) {
+                throw new TLRuntimeException("Step limit exceeded: " + maxSteps, null);
+            } else if ((steps & (CHECK_INTERVAL - 1)) == 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new TLRuntimeException("Evaluation interrupted", null);
+                } else if (timeoutMillis != UNLIMITED && System.nanoTime() - start > timeoutMillis * 1000000) {
+                    throw new TLRuntimeException("Time limit exceeded: " + timeoutMillis + "ms", null);
+                }
+            }
+        }
+        static TLBudget current() {
+            return ACTIVE.get() == 0 ? null : CURRENT.get();
+        }
+        static void safepoint() {
+            if (ACTIVE.get() == 0) {
+                return;
+            }
+            TLBudget budget = CURRENT.get();
+            if (budget != null) {
+                budget.step();
+            }
+        }
+        // Returns the budget to restore with exit
+        static TLBudget enter(TLBudget budget) {
+            TLBudget previous = CURRENT.get();
+            CURRENT.set(budget);
+            if (budget != null) {
+                ACTIVE.incrementAndGet();
+            }
+            return previous;
+        }
+        static void exit(TLBudget previous) {
+            if (CURRENT.get() != null) {
+                ACTIVE.decrementAndGet();
+            }
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
     }
 
     public static class TLRuntimeException extends RuntimeException {
@@ -707,7 +1891,7 @@ public class Engine {
 
     /* Utility functions */
 
-    private boolean isBreakingChar(char c) {
+    static boolean isBreakingChar(char c) {
         return c == '(' || c == ')' || c == '[' || c == ']' || c == '\'' || c == '"' || c == ';' || Character.isWhitespace(c);
     }
 
@@ -723,15 +1907,6 @@ public class Engine {
         return result.toString();
     }
 
-    private static boolean isSymbol(Object obj, String name) {
-        if (obj instanceof TLSymbolExpression) {
-            TLSymbolExpression symbol = (TLSymbolExpression) obj;
-            return name.equals(symbol.getValue());
-        } else {
-            return false;
-        }
-    }
-
     private static String listToString(String prefix, Iterable<?> items, String delimiter, String suffix) {
         StringBuilder builder = new StringBuilder(prefix);
         for (Object item : items) {
@@ -744,11 +1919,302 @@ public class Engine {
         return builder.toString();
     }
 
+    /* Arithmetic: exact integers are promoted int -> long -> BigInteger, and doubles are handled
+     * with primitive math. BigDecimal is only used when an operand is already BigDecimal or a
+     * mixed result can't be represented exactly otherwise. */
+
+    static TLExpression add(TLExpression a, TLExpression b) {
+        if (a instanceof TLLongExpression && b instanceof TLLongExpression) {
+            long x = ((TLLongExpression) a).longValue;
+            long y = ((TLLongExpression) b).longValue;
+            long result = x + y;
+            if (((x ^ result) & (y ^ result)) >= 0) {
+                return TLLongExpression.of(result);
+            }
+        } else if (isDoubleArithmetic(a, b)) {
+            TLExpression result = doubleResult(doubleValue(a) + doubleValue(b));
+            if (result != null) {
+                return result;
+            }
+        }
+        if (a instanceof TLArrayExpression || b instanceof TLArrayExpression) {
+            return ArrayKernels.arithmetic(ArrayKernels.ADD, a, b);
+        }
+        return expressionOf(add(toNumber(a), toNumber(b)));
+    }
+
+    private static TLExpression subtract(TLExpression a, TLExpression b) {
+        if (a instanceof TLLongExpression && b instanceof TLLongExpression) {
+            long x = ((TLLongExpression) a).longValue;
+            long y = ((TLLongExpression) b).longValue;
+            long result = x - y;
+            if (((x ^ y) & (x ^ result)) >= 0) {
+                return TLLongExpression.of(result);
+            }
+        } else if (isDoubleArithmetic(a, b)) {
+            TLExpression result = doubleResult(doubleValue(a) - doubleValue(b));
+            if (result != null) {
+                return result;
+            }
+        }
+        if (a instanceof TLArrayExpression || b instanceof TLArrayExpression) {
+            return ArrayKernels.arithmetic(ArrayKernels.SUBTRACT, a, b);
+        }
+        return expressionOf(subtract(toNumber(a), toNumber(b)));
+    }
+
+    private static TLExpression multiply(TLExpression a, TLExpression b) {
+        if (a instanceof TLLongExpression && b instanceof TLLongExpression) {
+            long x = ((TLLongExpression) a).longValue;
+            long y = ((TLLongExpression) b).longValue;
+            if (x == (int) x && y == (int) y) {
+                // Product of two ints can't overflow a long
+                return TLLongExpression.of(x * y);
+            }
+        } else if (isDoubleArithmetic(a, b)) {
+            TLExpression result = doubleResult(doubleValue(a) * doubleValue(b));
+            if (result != null) {
+                return result;
+            }
+        }
+        if (a instanceof TLArrayExpression || b instanceof TLArrayExpression) {
+            return ArrayKernels.arithmetic(ArrayKernels.MULTIPLY, a, b);
+        }
+        return expressionOf(multiply(toNumber(a), toNumber(b)));
+    }
+
+    private static TLExpression divide(TLExpression a, TLExpression b) {
+        if (isDoubleArithmetic(a, b) && doubleValue(b) != 0) {
+            TLExpression result = doubleResult(doubleValue(a) / doubleValue(b));
+            if (result != null) {
+                return result;
+            }
+        }
+        if (a instanceof TLArrayExpression || b instanceof TLArrayExpression) {
+            return ArrayKernels.arithmetic(ArrayKernels.DIVIDE, a, b);
+        }
+        return expressionOf(divide(toNumber(a), toNumber(b)));
+    }
+
+    static int compare(TLExpression a, TLExpression b) {
+        if (a instanceof TLLongExpression && b instanceof TLLongExpression) {
+            return Long.compare(((TLLongExpression) a).longValue, ((TLLongExpression) b).longValue);
+        } else if (isDoubleArithmetic(a, b)) {
+            return Double.compare(doubleValue(a), doubleValue(b));
+        } else {
+            return compare(toNumber(a), toNumber(b));
+        }
+    }
+
+    // The ordering builtins use these rather than compare so that doubles are compared with the
+    // primitive operators: -0.0 and 0.0 are equal, and every comparison with NaN is false
+    static boolean lessThan(TLExpression a, TLExpression b) {
+        if (a instanceof TLLongExpression && b instanceof TLLongExpression) {
+            return ((TLLongExpression) a).longValue < ((TLLongExpression) b).longValue;
+        } else if (isDoubleArithmetic(a, b)) {
+            return doubleValue(a) < doubleValue(b);
+        }
+        Number x = toNumber(a);
+        Number y = toNumber(b);
+        if (isDouble(x, y)) {
+            return x.doubleValue() < y.doubleValue();
+        }
+        return compare(x, y) < 0;
+    }
+
+    static boolean lessOrEqual(TLExpression a, TLExpression b) {
+        if (a instanceof TLLongExpression && b instanceof TLLongExpression) {
+            return ((TLLongExpression) a).longValue <= ((TLLongExpression) b).longValue;
+        } else if (isDoubleArithmetic(a, b)) {
+            return doubleValue(a) <= doubleValue(b);
+        }
+        Number x = toNumber(a);
+        Number y = toNumber(b);
+        if (isDouble(x, y)) {
+            return x.doubleValue() <= y.doubleValue();
+        }
+        return compare(x, y) <= 0;
+    }
+
+    // Primitive numbers, at least one of them a double
+    private static boolean isDouble(Number a, Number b) {
+        return isPrimitive(a) && isPrimitive(b) && (a instanceof Double || b instanceof Double);
+    }
+
+    // At least one double and otherwise only longs
+    private static boolean isDoubleArithmetic(TLExpression a, TLExpression b) {
+        return (a instanceof TLDoubleExpression && (b instanceof TLDoubleExpression || b instanceof TLLongExpression))
+                || (a instanceof TLLongExpression && b instanceof TLDoubleExpression);
+    }
+
+    private static double doubleValue(TLExpression expression) {
+        if (expression instanceof TLDoubleExpression) {
+            return ((TLDoubleExpression) expression).doubleValue;
+        } else {
+            return ((TLLongExpression) expression).longValue;
+        }
+    }
+
+    private static TLExpression doubleResult(double value) {
+        Number result = reduceDouble(value);
+        if (result instanceof Double) {
+            return TLDoubleExpression.of(value);
+        } else if (result != null) {
+            return TLLongExpression.of(result.longValue());
+        } else {
+            return null;
+        }
+    }
+
+    private static Number toNumber(TLExpression expression) {
+        return (Number) expression.getValue();
+    }
+
+    private static Number add(Number a, Number b) {
+        if (isLong(a) && isLong(b)) {
+            try {
+                return narrow(Math.addExact(a.longValue(), b.longValue()));
+            } catch (ArithmeticException ex) {
+                // Overflows a long
+            }
+        }
+        if (isExactInteger(a) && isExactInteger(b)) {
+            return reduceBigInteger(toBigInteger(a).add(toBigInteger(b)));
+        } else if (isPrimitive(a) && isPrimitive(b)) {
+            Number result = reduceDouble(a.doubleValue() + b.doubleValue());
+            if (result != null) {
+                return result;
+            }
+        }
+        return reduceBigDecimal(toBigDecimal(a).add(toBigDecimal(b)));
+    }
+
+    private static Number subtract(Number a, Number b) {
+        if (isLong(a) && isLong(b)) {
+            try {
+                return narrow(Math.subtractExact(a.longValue(), b.longValue()));
+            } catch (ArithmeticException ex) {
+                // Overflows a long
+            }
+        }
+        if (isExactInteger(a) && isExactInteger(b)) {
+            return reduceBigInteger(toBigInteger(a).subtract(toBigInteger(b)));
+        } else if (isPrimitive(a) && isPrimitive(b)) {
+            Number result = reduceDouble(a.doubleValue() - b.doubleValue());
+            if (result != null) {
+                return result;
+            }
+        }
+        return reduceBigDecimal(toBigDecimal(a).subtract(toBigDecimal(b)));
+    }
+
+    private static Number multiply(Number a, Number b) {
+        if (isLong(a) && isLong(b)) {
+            try {
+                return narrow(Math.multiplyExact(a.longValue(), b.longValue()));
+            } catch (ArithmeticException ex) {
+                // Overflows a long
+            }
+        }
+        if (isExactInteger(a) && isExactInteger(b)) {
+            return reduceBigInteger(toBigInteger(a).multiply(toBigInteger(b)));
+        } else if (isPrimitive(a) && isPrimitive(b)) {
+            Number result = reduceDouble(a.doubleValue() * b.doubleValue());
+            if (result != null) {
+                return result;
+            }
+        }
+        return reduceBigDecimal(toBigDecimal(a).multiply(toBigDecimal(b)));
+    }
+
+    private static Number divide(Number a, Number b) {
+        // Division by zero is left to BigDecimal so that it still throws
+        if (isLong(a) && isLong(b)) {
+            long x = a.longValue();
+            long y = b.longValue();
+            if (y != 0 && x % y == 0 && !(x == Long.MIN_VALUE && y == -1)) {
+                return narrow(x / y);
+            }
+        } else if (isExactInteger(a) && isExactInteger(b) && toBigInteger(b).signum() != 0) {
+            BigInteger[] result = toBigInteger(a).divideAndRemainder(toBigInteger(b));
+            if (result[1].signum() == 0) {
+                return reduceBigInteger(result[0]);
+            }
+        }
+        if (isPrimitive(a) && isPrimitive(b) && b.doubleValue() != 0) {
+            Number result = reduceDouble(a.doubleValue() / b.doubleValue());
+            if (result != null) {
+                return result;
+            }
+        }
+        return reduceBigDecimal(toBigDecimal(a).divide(toBigDecimal(b), 16, RoundingMode.UP));
+    }
+
+    private static int compare(Number a, Number b) {
+        if (isLong(a) && isLong(b)) {
+            return Long.compare(a.longValue(), b.longValue());
+        } else if (isExactInteger(a) && isExactInteger(b)) {
+            return toBigInteger(a).compareTo(toBigInteger(b));
+        } else if (isPrimitive(a) && isPrimitive(b)) {
+            return Double.compare(a.doubleValue(), b.doubleValue());
+        } else {
+            return toBigDecimal(a).compareTo(toBigDecimal(b));
+        }
+    }
+
+    private static boolean isLong(Number value) {
+        return value instanceof Integer || value instanceof Long;
+    }
+
+    private static boolean isExactInteger(Number value) {
+        return value instanceof Integer || value instanceof Long || value instanceof BigInteger;
+    }
+
+    private static boolean isPrimitive(Number value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Double;
+    }
+
+    private static Number narrow(long value) {
+        return value == (int) value ? (Number) (int) value : (Number) value;
+    }
+
+    // Same contract as reduceBigDecimal, or null if the value needs BigDecimal to be exact
+    private static Number reduceDouble(double value) {
+        if (Double.isInfinite(value) || Double.isNaN(value)) {
+            return null;
+        } else if (value == Math.rint(value)) {
+            // Beyond 2^53 an integral double may already have lost precision
+            return Math.abs(value) <= (1L << 53) ? narrow((long) value) : null;
+        } else {
+            return value;
+        }
+    }
+
+    static Number reduceBigInteger(BigInteger value) {
+        if (value.bitLength() < 32) {
+            return value.intValue();
+        } else if (value.bitLength() < 64) {
+            return value.longValue();
+        } else {
+            return value;
+        }
+    }
+
+    private static BigInteger toBigInteger(Number value) {
+        if (value instanceof BigInteger) {
+            return (BigInteger) value;
+        } else {
+            return BigInteger.valueOf(value.longValue());
+        }
+    }
+
     private static BigDecimal toBigDecimal(Number value) {
         if (value instanceof Double) {
             return BigDecimal.valueOf(value.doubleValue());
-        } else if (value instanceof Integer) {
-            return BigDecimal.valueOf(value.intValue());
+        } else if (value instanceof Integer || value instanceof Long) {
+            return BigDecimal.valueOf(value.longValue());
+        } else if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
         } else if (value instanceof BigDecimal) {
             return (BigDecimal) value;
         } else {
@@ -758,12 +2224,7 @@ public class Engine {
 
     static Number reduceBigDecimal(BigDecimal value) {
         if (value.signum() == 0 || value.scale() <= 0 || value.stripTrailingZeros().scale() <= 0) {
-            try {
-                return value.intValueExact();
-            } catch (ArithmeticException ex) {
-                // Doesn't fit in an int, but is an integer
-                return value.setScale(0, RoundingMode.UNNECESSARY);
-            }
+            return reduceBigInteger(value.toBigIntegerExact());
         } else {
             double dbl = value.doubleValue();
             if (!Double.isInfinite(dbl)) {
@@ -0,0 +1,41 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.TLExpression;
+import org.tinylisp.engine.Engine.TLFunction;
+
+// Receives the timing of each program execution, parse, evaluation, and function call of an
+// Engine it has been set on with Engine.setListener. Methods are called on the evaluating
+// threads, possibly several at once, and should return quickly. error is null unless the
+// operation threw.
+//
+// Each operation is announced before it starts and reported after it ends; operations on one
+// thread nest. Reading a program from a stream ends with a parse that finds no more forms.
+public abstract class EngineListener {
+
+    // A program string or stream is about to be executed
+    public void executing() {
+    }
+
+    public void executed(long nanos, Throwable error) {
+    }
+
+    public void parsing() {
+    }
+
+    // A top-level form, or a whole program string, of chars characters was read, or the end of a
+    // stream after chars characters of whitespace and comments
+    public void parsed(long chars, long nanos, Throwable error) {
+    }
+
+    public void evaluating(TLExpression form) {
+    }
+
+    public void evaluated(long nanos, Throwable error) {
+    }
+
+    public void applying(TLFunction function) {
+    }
+
+    public void applied(TLFunction function, long nanos, Throwable error) {
+    }
+}
@@ -0,0 +1,284 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.TLFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts evaluations, parses, and function calls of the engines it listens to, and keeps latency
+// histograms of evaluations and calls. Counters are striped, so threads evaluating at the same
+// time don't contend; percentiles are accurate to within 1/8 of their value.
+public class EngineMetrics extends EngineListener implements EngineMetricsMBean {
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final String name;
+
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder evaluationErrors = new LongAdder();
+    private final Histogram evaluationLatency = new Histogram();
+    private final Rate evaluationRate = new Rate();
+
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final LongAdder parsedChars = new LongAdder();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder callErrors = new LongAdder();
+    private final Histogram callLatency = new Histogram();
+    private final Rate callRate = new Rate();
+
+    public EngineMetrics() {
+        this("engine-" + INSTANCES.incrementAndGet());
+    }
+
+    // The name identifies the MBean, so each registered instance needs its own
+    public EngineMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /* EngineListener */
+
+    @Override public void parsed(long chars, long nanos, Throwable error) {
+        parses.increment();
+        parsedChars.add(chars);
+        if (error != null) {
+            parseErrors.increment();
+        }
+    }
+
+    @Override public void evaluated(long nanos, Throwable error) {
+        evaluations.increment();
+        evaluationLatency.record(nanos);
+        if (error != null) {
+            evaluationErrors.increment();
+        }
+    }
+
+    @Override public void applied(TLFunction function, long nanos, Throwable error) {
+        calls.increment();
+        callLatency.record(nanos);
+        if (error != null) {
+            callErrors.increment();
+        }
+    }
+
+    /* EngineMetricsMBean */
+
+    @Override public long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    @Override public long getEvaluationErrors() {
+        return evaluationErrors.sum();
+    }
+
+    @Override public double getEvaluationsPerSecond() {
+        return evaluationRate.update(evaluations.sum());
+    }
+
+    @Override public double getEvaluationP50Millis() {
+        return evaluationLatency.percentile(0.5) / 1e6;
+    }
+
+    @Override public double getEvaluationP99Millis() {
+        return evaluationLatency.percentile(0.99) / 1e6;
+    }
+
+    @Override public double getEvaluationP999Millis() {
+        return evaluationLatency.percentile(0.999) / 1e6;
+    }
+
+    @Override public double getEvaluationMaxMillis() {
+        return evaluationLatency.max() / 1e6;
+    }
+
+    @Override public long getParses() {
+        return parses.sum();
+    }
+
+    @Override public long getParseErrors() {
+        return parseErrors.sum();
+    }
+
+    @Override public long getParsedChars() {
+        return parsedChars.sum();
+    }
+
+    @Override public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override public long getCallErrors() {
+        return callErrors.sum();
+    }
+
+    @Override public double getCallsPerSecond() {
+        return callRate.update(calls.sum());
+    }
+
+    @Override public double getCallP99Micros() {
+        return callLatency.percentile(0.99) / 1e3;
+    }
+
+    // Counts recorded while resetting may be lost
+    @Override public void reset() {
+        evaluations.reset();
+        evaluationErrors.reset();
+        evaluationLatency.reset();
+        evaluationRate.reset();
+        parses.reset();
+        parseErrors.reset();
+        parsedChars.reset();
+        calls.reset();
+        callErrors.reset();
+        callLatency.reset();
+        callRate.reset();
+    }
+
+    /* JMX */
+
+    // Registers with the platform MBean server as org.tinylisp:type=Engine,name=<name>. JMX is not
+    // available on Android, where the metrics can still be read directly.
+    public void register() throws JMException {
+        Jmx.register(this, name);
+    }
+
+    public void unregister() throws JMException {
+        Jmx.unregister(name);
+    }
+
+    // Kept apart so that EngineMetrics loads where java.lang.management doesn't exist
+    private static class Jmx {
+        static void register(Object mbean, String name) throws JMException {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName(name));
+        }
+        static void unregister(String name) throws JMException {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+        }
+        private static ObjectName objectName(String name) throws JMException {
+            return new ObjectName("org.tinylisp:type=Engine,name=" + ObjectName.quote(name));
+        }
+    }
+
+    // Log-linear histogram of nanosecond durations: each power of two is split into 8 buckets
+    static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final AtomicLong max = new AtomicLong();
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            counts[index(value)].increment();
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        }
+        // The largest value that falls in the bucket
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+            long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BITS);
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+        // The smallest bucket bound with at least the fraction q of values at or below it
+        long percentile(double q) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts[i].sum();
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max((long) Math.ceil(q * total), 1);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+        long max() {
+            return max.get();
+        }
+        void reset() {
+            for (LongAdder count : counts) {
+                count.reset();
+            }
+            max.set(0);
+        }
+    }
+
+    // Events per second since the older of two samples that advance at most once a second, so the
+    // rate covers the last one to two seconds whenever it's read and however many clients poll it.
+    // After a pause in reads, the first read covers the whole pause.
+    private static class Rate {
+        private static final long INTERVAL = 1000000000L;
+        private volatile Window window = new Window(System.nanoTime(), 0);
+        double update(long count) {
+            long now = System.nanoTime();
+            Window window = this.window;
+            if (now - window.time >= INTERVAL) {
+                window = advance(window, now, count);
+            }
+            long elapsed = now - window.previousTime;
+            return elapsed <= 0 ? 0 : (count - window.previousCount) * 1e9 / elapsed;
+        }
+        private synchronized Window advance(Window seen, long now, long count) {
+            if (window == seen) {
+                window = new Window(seen, now, count);
+            }
+            return window;
+        }
+        synchronized void reset() {
+            window = new Window(System.nanoTime(), 0);
+        }
+    }
+
+    private static final class Window {
+        final long previousTime;
+        final long previousCount;
+        final long time;
+        final long count;
+        Window(long time, long count) {
+            this.previousTime = time;
+            this.previousCount = count;
+            this.time = time;
+            this.count = count;
+        }
+        Window(Window previous, long time, long count) {
+            this.previousTime = previous.time;
+            this.previousCount = previous.count;
+            this.time = time;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.tinylisp.engine;
+
+// Management interface of EngineMetrics. Counts are totals since creation or the last reset;
+// rates cover the last one to two seconds, the same for every client polling them.
+public interface EngineMetricsMBean {
+
+    long getEvaluations();
+
+    long getEvaluationErrors();
+
+    double getEvaluationsPerSecond();
+
+    double getEvaluationP50Millis();
+
+    double getEvaluationP99Millis();
+
+    double getEvaluationP999Millis();
+
+    double getEvaluationMaxMillis();
+
+    long getParses();
+
+    long getParseErrors();
+
+    long getParsedChars();
+
+    long getCalls();
+
+    long getCallErrors();
+
+    double getCallsPerSecond();
+
+    double getCallP99Micros();
+
+    void reset();
+}
@@ -0,0 +1,182 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.*;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+// Overload resolution for dynamic member calls
+class Members {
+
+    // The class that selects an overload for an argument; null for null. Numbers report the class
+    // their value reads as, without boxing it.
+    static Class<?> argumentClass(TLExpression arg) {
+        if (arg instanceof TLLongExpression) {
+            long value = ((TLLongExpression) arg).longValue();
+            return (int) value == value ? Integer.class : Long.class;
+        } else if (arg instanceof TLDoubleExpression) {
+            return Double.class;
+        }
+        Object value = arg.getValue();
+        return value == null ? null : value.getClass();
+    }
+
+    // Finds the public method named name that accepts args at the lowest conversion cost. When the
+    // receiver is a Class its static methods are tried first, then the methods of Class itself.
+    static MethodInvoker resolve(Object receiver, String name, TLListExpression args) {
+        Class<?>[] argClasses = new Class<?>[args.size()];
+        int n = 0;
+        for (TLExpression arg : args) {
+            argClasses[n++] = argumentClass(arg);
+        }
+        if (receiver instanceof Class) {
+            Class<?> type = (Class<?>) receiver;
+            Method best = best(type.getMethods(), true, name, argClasses, receiver);
+            if (best != null) {
+                return invoker(best, type);
+            }
+        }
+        Method best = best(receiver.getClass().getMethods(), false, name, argClasses, receiver);
+        if (best == null) {
+            throw new IllegalArgumentException("No method " + name + " on " + describe(receiver)
+                    + " accepting " + Arrays.toString(argClasses));
+        }
+        return invoker(best, receiver.getClass());
+    }
+
+    private static Method best(Method[] methods, boolean staticOnly, String name, Class<?>[] argClasses, Object receiver) {
+        Method best = null;
+        int bestCost = Integer.MAX_VALUE;
+        boolean ambiguous = false;
+        for (Method method : methods) {
+            if (staticOnly && !Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+            int cost = cost(method, name, argClasses);
+            if (cost < bestCost) {
+                best = method;
+                bestCost = cost;
+                ambiguous = false;
+            } else if (cost == bestCost && cost != Integer.MAX_VALUE && !sameSignature(best, method)) {
+                ambiguous = true;
+            }
+        }
+        if (ambiguous) {
+            throw new IllegalArgumentException("Ambiguous call to " + name + " on " + describe(receiver)
+                    + " with " + Arrays.toString(argClasses));
+        }
+        return best;
+    }
+
+    private static int cost(Method method, String name, Class<?>[] argClasses) {
+        if (!method.getName().equals(name) || method.getParameterTypes().length != argClasses.length) {
+            return Integer.MAX_VALUE;
+        }
+        Class<?>[] types = method.getParameterTypes();
+        int total = 0;
+        for (int i = 0; i < types.length; i++) {
+            int cost = cost(types[i], argClasses[i]);
+            if (cost == Integer.MAX_VALUE) {
+                return cost;
+            }
+            total += cost;
+        }
+        return total;
+    }
+
+    // Mirrors the conversions accepted by MethodInvoker's converters, preferring exact matches,
+    // then primitive widening, then boxed and arbitrary precision numbers, then supertypes
+    private static int cost(Class<?> type, Class<?> argClass) {
+        if (argClass == null) {
+            return type.isPrimitive() ? Integer.MAX_VALUE : 1;
+        } else if (type == argClass) {
+            return 0;
+        }
+        Class<?> primitive = MethodInvoker.unboxedType(argClass);
+        if (type == primitive) {
+            return 0;
+        }
+        if (primitive == char.class) {
+            primitive = int.class;
+        }
+        int from = MethodInvoker.PRIMITIVES.indexOf(primitive);
+        if (from != -1) {
+            int to = MethodInvoker.PRIMITIVES.indexOf(type.isPrimitive() ? type : MethodInvoker.unboxedType(type));
+            if (to >= from) {
+                return (type.isPrimitive() ? 1 : 10) + to - from;
+            } else if (type == BigDecimal.class && (primitive == int.class || primitive == long.class || primitive == double.class)) {
+                return 20;
+            } else if (type == BigInteger.class && (primitive == int.class || primitive == long.class)) {
+                return 20;
+            }
+        } else if (type == BigDecimal.class && argClass == BigInteger.class) {
+            return 20;
+        }
+        if (type.isPrimitive() || !type.isAssignableFrom(argClass)) {
+            return Integer.MAX_VALUE;
+        } else if (type == Object.class) {
+            return 50;
+        } else if (type.isInterface()) {
+            return 40;
+        }
+        int distance = 0;
+        for (Class<?> c = argClass; c != type; c = c.getSuperclass()) {
+            distance++;
+        }
+        return 30 + distance;
+    }
+
+    // A public method declared in a non-public class (e.g. a private Iterator implementation) can
+    // only be looked up through a public class or interface that has it
+    private static MethodInvoker invoker(Method method, Class<?> receiverClass) {
+        if (Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+            return MethodInvoker.of(method);
+        }
+        Class<?> owner = publicOwner(receiverClass, method);
+        if (owner == null) {
+            return MethodInvoker.of(method);
+        }
+        try {
+            return MethodInvoker.of(owner.getMethod(method.getName(), method.getParameterTypes()), owner);
+        } catch (NoSuchMethodException ex) {
+            return MethodInvoker.of(method);
+        }
+    }
+
+    private static Class<?> publicOwner(Class<?> type, Method method) {
+        if (type == null) {
+            return null;
+        }
+        if (Modifier.isPublic(type.getModifiers()) && hasMethod(type, method)) {
+            return type;
+        }
+        for (Class<?> iface : type.getInterfaces()) {
+            Class<?> owner = publicOwner(iface, method);
+            if (owner != null) {
+                return owner;
+            }
+        }
+        return publicOwner(type.getSuperclass(), method);
+    }
+
+    private static boolean hasMethod(Class<?> type, Method method) {
+        try {
+            type.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    private static boolean sameSignature(Method a, Method b) {
+        // Covariant overrides show up as several methods with the same parameters
+        return Arrays.equals(a.getParameterTypes(), b.getParameterTypes());
+    }
+
+    private static String describe(Object receiver) {
+        return receiver instanceof Class ? ((Class<?>) receiver).getName() : receiver.getClass().getName();
+    }
+}
@@ -0,0 +1,346 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+// Calls a Java method with TinyLisp arguments. Argument converters are picked once from the
+// method's parameter types, so a call only has to unwrap and check each argument. The receiver
+// is supplied on each call and ignored for static methods.
+abstract class MethodInvoker {
+
+    // java.lang.invoke is only available from Android API 26
+    private static final boolean METHOD_HANDLES = isClassAvailable("java.lang.invoke.MethodHandles");
+
+    static MethodInvoker of(Method method) {
+        return of(method, method.getDeclaringClass());
+    }
+
+    // The owner is the class the method is looked up in, which must be accessible even when the
+    // method is declared in a non-public superclass
+    static MethodInvoker of(Method method, Class<?> owner) {
+        Converter[] converters = convertersFor(method);
+        if (METHOD_HANDLES) {
+            try {
+                return new MethodHandleInvoker(method, owner, converters);
+            } catch (IllegalAccessException | NoSuchMethodException ex) {
+                // Fall through to reflection, which reports access problems when called
+            }
+        }
+        return new ReflectiveInvoker(method, converters);
+    }
+
+    static Converter[] convertersFor(Method method) {
+        Class<?>[] types = method.getParameterTypes();
+        Converter[] converters = new Converter[types.length];
+        for (int i = 0; i < types.length; i++) {
+            converters[i] = converterFor(types[i]);
+        }
+        return converters;
+    }
+
+    final Converter[] converters;
+
+    MethodInvoker(Converter[] converters) {
+        this.converters = converters;
+    }
+
+    abstract Object invoke(Object receiver, TLListExpression args) throws Exception;
+
+    void checkArity(TLListExpression args) {
+        if (args.size() != converters.length) {
+            throw new IllegalArgumentException("wrong number of arguments: expected " + converters.length
+                    + " but got " + args.size());
+        }
+    }
+
+    static class ReflectiveInvoker extends MethodInvoker {
+        private final Method method;
+        ReflectiveInvoker(Method method, Converter[] converters) {
+            super(converters);
+            this.method = method;
+        }
+        @Override Object invoke(Object receiver, TLListExpression args) throws Exception {
+            checkArity(args);
+            Object[] jargs = new Object[converters.length];
+            int i = 0;
+            for (TLExpression arg : args) {
+                jargs[i] = converters[i].convert(arg);
+                i++;
+            }
+            try {
+                return method.invoke(receiver, jargs);
+            } catch (InvocationTargetException ex) {
+                // Report the method's own exception, as the method handle path does
+                if (ex.getCause() instanceof Exception) {
+                    throw (Exception) ex.getCause();
+                } else if (ex.getCause() instanceof Error) {
+                    throw (Error) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+    }
+
+    static class MethodHandleInvoker extends MethodInvoker {
+        // Methods with more parameters than this are called through a spreader
+        private static final int MAX_EXACT_ARITY = 3;
+        private final MethodHandle handle;
+        MethodHandleInvoker(Method method, Class<?> owner, Converter[] converters)
+                throws IllegalAccessException, NoSuchMethodException {
+            super(converters);
+            MethodHandle handle;
+            boolean isStatic = Modifier.isStatic(method.getModifiers());
+            if (owner == method.getDeclaringClass()) {
+                handle = MethodHandles.publicLookup().unreflect(method);
+            } else {
+                MethodType type = MethodType.methodType(method.getReturnType(), method.getParameterTypes());
+                handle = isStatic ? MethodHandles.publicLookup().findStatic(owner, method.getName(), type)
+                        : MethodHandles.publicLookup().findVirtual(owner, method.getName(), type);
+            }
+            handle = handle.asFixedArity();
+            if (isStatic) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+            // Converters produce exactly the boxed parameter types, so the generic signature only
+            // costs a cast and unbox per argument
+            handle = handle.asType(MethodType.genericMethodType(converters.length + 1));
+            if (converters.length > MAX_EXACT_ARITY) {
+                handle = handle.asSpreader(Object[].class, converters.length);
+            }
+            this.handle = handle;
+        }
+        @Override Object invoke(Object receiver, TLListExpression args) throws Exception {
+            checkArity(args);
+            Iterator<TLExpression> it = args.iterator();
+            try {
+                switch (converters.length) {
+                    case 0:
+                        return (Object) handle.invokeExact(receiver);
+                    case 1:
+                        return (Object) handle.invokeExact(receiver, converters[0].convert(it.next()));
+                    case 2:
+                        return (Object) handle.invokeExact(receiver, converters[0].convert(it.next()),
+                                converters[1].convert(it.next()));
+                    case 3:
+                        return (Object) handle.invokeExact(receiver, converters[0].convert(it.next()),
+                                converters[1].convert(it.next()), converters[2].convert(it.next()));
+                    default:
+                        Object[] jargs = new Object[converters.length];
+                        for (int i = 0; i < jargs.length; i++) {
+                            jargs[i] = converters[i].convert(it.next());
+                        }
+                        return (Object) handle.invokeExact(receiver, jargs);
+                }
+            } catch (Exception | Error ex) {
+                throw ex;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    /* Argument conversion */
+
+    abstract static class Converter {
+        abstract Object convert(TLExpression arg);
+    }
+
+    static Converter converterFor(Class<?> type) {
+        if (type == Object.class) {
+            return OBJECT;
+        } else if (type == int.class) {
+            return INT;
+        } else if (type == long.class) {
+            return LONG;
+        } else if (type == double.class) {
+            return DOUBLE;
+        } else if (type == BigDecimal.class) {
+            return BIG_DECIMAL;
+        } else if (type == BigInteger.class) {
+            return BIG_INTEGER;
+        } else if (type.isPrimitive() || PRIMITIVES.contains(unboxedType(type))) {
+            return new WideningConverter(type);
+        } else {
+            return new ReferenceConverter(type);
+        }
+    }
+
+    private static final Converter OBJECT = new Converter() {
+        @Override Object convert(TLExpression arg) {
+            return arg.getValue();
+        }
+    };
+
+    private static final Converter INT = new Converter() {
+        @Override Object convert(TLExpression arg) {
+            if (arg instanceof TLLongExpression) {
+                long value = ((TLLongExpression) arg).longValue();
+                if ((int) value == value) {
+                    return (int) value;
+                }
+                throw mismatch(int.class, arg);
+            }
+            return widen(arg, int.class);
+        }
+    };
+
+    private static final Converter LONG = new Converter() {
+        @Override Object convert(TLExpression arg) {
+            if (arg instanceof TLLongExpression) {
+                return ((TLLongExpression) arg).longValue();
+            }
+            return widen(arg, long.class);
+        }
+    };
+
+    private static final Converter DOUBLE = new Converter() {
+        @Override Object convert(TLExpression arg) {
+            if (arg instanceof TLDoubleExpression) {
+                return ((TLDoubleExpression) arg).doubleValue();
+            } else if (arg instanceof TLLongExpression) {
+                return (double) ((TLLongExpression) arg).longValue();
+            }
+            return widen(arg, double.class);
+        }
+    };
+
+    // Any exact or floating value is representable as a BigDecimal
+    private static final Converter BIG_DECIMAL = new Converter() {
+        @Override Object convert(TLExpression arg) {
+            Object value = arg.getValue();
+            if (value == null || value instanceof BigDecimal) {
+                return value;
+            } else if (value instanceof Integer || value instanceof Long) {
+                return BigDecimal.valueOf(((Number) value).longValue());
+            } else if (value instanceof Double) {
+                return BigDecimal.valueOf((Double) value);
+            } else if (value instanceof BigInteger) {
+                return new BigDecimal((BigInteger) value);
+            }
+            throw mismatch(BigDecimal.class, arg);
+        }
+    };
+
+    private static final Converter BIG_INTEGER = new Converter() {
+        @Override Object convert(TLExpression arg) {
+            Object value = arg.getValue();
+            if (value == null || value instanceof BigInteger) {
+                return value;
+            } else if (value instanceof Integer || value instanceof Long) {
+                return BigInteger.valueOf(((Number) value).longValue());
+            }
+            throw mismatch(BigInteger.class, arg);
+        }
+    };
+
+    // Applies Java's widening primitive conversions; also used for wrapper parameters so that
+    // e.g. a small number, which reads as an Integer, can be passed as a Long
+    static class WideningConverter extends Converter {
+        private final Class<?> type;
+        private final Class<?> primitive;
+        WideningConverter(Class<?> type) {
+            this.type = type;
+            this.primitive = type.isPrimitive() ? type : unboxedType(type);
+        }
+        @Override Object convert(TLExpression arg) {
+            if (!type.isPrimitive() && arg.getValue() == null) {
+                return null;
+            }
+            return widen(arg, primitive);
+        }
+    }
+
+    static class ReferenceConverter extends Converter {
+        private final Class<?> type;
+        ReferenceConverter(Class<?> type) {
+            this.type = type;
+        }
+        @Override Object convert(TLExpression arg) {
+            Object value = arg.getValue();
+            if (value == null || type.isInstance(value)) {
+                return value;
+            }
+            throw mismatch(type, arg);
+        }
+    }
+
+    // Widening order of the numeric primitives; char widens like int but nothing widens to char
+    static final List<Class<?>> PRIMITIVES = Arrays.<Class<?>>asList(byte.class, short.class, int.class,
+            long.class, float.class, double.class);
+
+    static Object widen(TLExpression arg, Class<?> type) {
+        Object value = arg.getValue();
+        if (type == boolean.class || type == char.class) {
+            if (value != null && unboxedType(value.getClass()) == type) {
+                return value;
+            }
+            throw mismatch(type, arg);
+        }
+        if (value instanceof Character) {
+            value = (int) (Character) value;
+        }
+        Class<?> source = value == null ? null : unboxedType(value.getClass());
+        if (source == null || !PRIMITIVES.contains(source) || PRIMITIVES.indexOf(source) > PRIMITIVES.indexOf(type)) {
+            throw mismatch(type, arg);
+        }
+        Number number = (Number) value;
+        if (type == byte.class) {
+            return number.byteValue();
+        } else if (type == short.class) {
+            return number.shortValue();
+        } else if (type == int.class) {
+            return number.intValue();
+        } else if (type == long.class) {
+            return number.longValue();
+        } else if (type == float.class) {
+            return number.floatValue();
+        } else {
+            return number.doubleValue();
+        }
+    }
+
+    static Class<?> unboxedType(Class<?> type) {
+        if (type == Integer.class) {
+            return int.class;
+        } else if (type == Long.class) {
+            return long.class;
+        } else if (type == Double.class) {
+            return double.class;
+        } else if (type == Boolean.class) {
+            return boolean.class;
+        } else if (type == Character.class) {
+            return char.class;
+        } else if (type == Byte.class) {
+            return byte.class;
+        } else if (type == Short.class) {
+            return short.class;
+        } else if (type == Float.class) {
+            return float.class;
+        }
+        return null;
+    }
+
+    private static IllegalArgumentException mismatch(Class<?> type, TLExpression arg) {
+        return new IllegalArgumentException("argument type mismatch: expected " + type.getName() + " but got " + arg);
+    }
+
+    private static boolean isClassAvailable(String name) {
+        try {
+            Class.forName(name);
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+}
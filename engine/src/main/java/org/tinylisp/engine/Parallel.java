@@ -0,0 +1,215 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// Parallel map, filter, and reduce over lists and arrays. Inputs are split in halves until a
+// piece is no larger than the engine's threshold; results keep the order of the input.
+class Parallel {
+
+    private final Engine engine;
+    private final ForkJoinPool pool;
+    private final int threshold;
+    // The caller's budget, which workers run under as well
+    private final TLBudget budget;
+
+    Parallel(Engine engine) {
+        this.engine = engine;
+        this.pool = engine.getPool();
+        this.threshold = Math.max(engine.getParallelThreshold(), 1);
+        this.budget = TLBudget.current();
+    }
+
+    TLExpression map(final TLFunction function, TLExpression collection) throws Exception {
+        final TLExpression[] items = elements(collection);
+        final TLExpression[] results = new TLExpression[items.length];
+        run(new RecursiveAction() {
+            @Override protected void compute() {
+                forEach(items, 0, items.length, new Step() {
+                    @Override public void apply(int i) throws Exception {
+                        results[i] = call(function, items[i]);
+                    }
+                });
+            }
+        }, items.length);
+        return collect(collection, Arrays.asList(results));
+    }
+
+    TLExpression filter(final TLFunction predicate, TLExpression collection) throws Exception {
+        final TLExpression[] items = elements(collection);
+        final boolean[] keep = new boolean[items.length];
+        run(new RecursiveAction() {
+            @Override protected void compute() {
+                forEach(items, 0, items.length, new Step() {
+                    @Override public void apply(int i) throws Exception {
+                        keep[i] = call(predicate, items[i]).asBoolean();
+                    }
+                });
+            }
+        }, items.length);
+        List<TLExpression> results = new ArrayList<>();
+        for (int i = 0; i < items.length; i++) {
+            if (keep[i]) {
+                results.add(items[i]);
+            }
+        }
+        return collect(collection, results);
+    }
+
+    // Pieces are reduced starting from init and then combined left to right, so the function must
+    // be associative and init must be its identity
+    TLExpression reduce(TLFunction function, TLExpression init, TLExpression collection) throws Exception {
+        TLExpression[] items = elements(collection);
+        ReduceTask task = new ReduceTask(function, init, items, 0, items.length);
+        if (items.length <= threshold) {
+            return task.reduce();
+        }
+        try {
+            return pool.invoke(task);
+        } catch (WrappedException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private class ReduceTask extends RecursiveTask<TLExpression> {
+        private static final long serialVersionUID = 1L;
+        private final TLFunction function;
+        private final TLExpression init;
+        private final TLExpression[] items;
+        private final int from;
+        private final int to;
+        ReduceTask(TLFunction function, TLExpression init, TLExpression[] items, int from, int to) {
+            this.function = function;
+            this.init = init;
+            this.items = items;
+            this.from = from;
+            this.to = to;
+        }
+        TLExpression reduce() throws Exception {
+            TLBudget previous = TLBudget.enter(budget);
+            try {
+                TLExpression result = init;
+                for (int i = from; i < to; i++) {
+                    result = call(function, result, items[i]);
+                }
+                return result;
+            } finally {
+                TLBudget.exit(previous);
+            }
+        }
+        @Override protected TLExpression compute() {
+            try {
+                if (to - from <= threshold) {
+                    return reduce();
+                }
+                int middle = (from + to) >>> 1;
+                ReduceTask left = new ReduceTask(function, init, items, from, middle);
+                ReduceTask right = new ReduceTask(function, init, items, middle, to);
+                right.fork();
+                TLExpression leftResult = left.compute();
+                return call(function, leftResult, right.join());
+            } catch (WrappedException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new WrappedException(ex);
+            }
+        }
+    }
+
+    private interface Step {
+        void apply(int i) throws Exception;
+    }
+
+    private void forEach(final TLExpression[] items, final int from, final int to, final Step step) {
+        if (to - from <= threshold) {
+            TLBudget previous = TLBudget.enter(budget);
+            try {
+                for (int i = from; i < to; i++) {
+                    step.apply(i);
+                }
+            } catch (Exception ex) {
+                throw new WrappedException(ex);
+            } finally {
+                TLBudget.exit(previous);
+            }
+            return;
+        }
+        final int middle = (from + to) >>> 1;
+        RecursiveAction.invokeAll(new RecursiveAction() {
+            @Override protected void compute() {
+                forEach(items, from, middle, step);
+            }
+        }, new RecursiveAction() {
+            @Override protected void compute() {
+                forEach(items, middle, to, step);
+            }
+        });
+    }
+
+    // Small inputs run on the calling thread
+    private void run(RecursiveAction action, int size) throws Exception {
+        try {
+            if (size <= threshold) {
+                action.invoke();
+            } else {
+                pool.invoke(action);
+            }
+        } catch (WrappedException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private TLExpression call(TLFunction function, TLExpression... args) throws Exception {
+        TLListExpression arguments = new TLListExpression();
+        for (TLExpression arg : args) {
+            arguments.add(arg);
+        }
+        return engine.apply(function, arguments);
+    }
+
+    private static TLExpression[] elements(TLExpression collection) {
+        if (collection instanceof TLListExpression) {
+            return ((TLListExpression) collection).toArray(new TLExpression[0]);
+        } else if (collection instanceof TLArrayExpression) {
+            TLArrayExpression array = (TLArrayExpression) collection;
+            TLExpression[] items = new TLExpression[array.length()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = Engine.expressionOf(array.get(i));
+            }
+            return items;
+        } else if (collection instanceof TLSeqExpression) {
+            return ((TLSeqExpression) collection).realize().toArray(new TLExpression[0]);
+        }
+        throw new IllegalArgumentException("Not a list or array: " + collection);
+    }
+
+    // Arrays produce arrays; lists and lazy sequences produce lists
+    private static TLExpression collect(TLExpression collection, List<TLExpression> results) {
+        if (collection instanceof TLArrayExpression) {
+            List<Object> values = new ArrayList<>(results.size());
+            for (TLExpression result : results) {
+                values.add(result.getValue());
+            }
+            return TLArrayExpression.from(values);
+        }
+        return new TLListExpression(results);
+    }
+
+    // Carries exceptions out of fork/join tasks; the pool would otherwise rethrow exceptions from
+    // other threads as new instances of the same class, losing their messages
+    private static class WrappedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        WrappedException(Exception cause) {
+            super(cause);
+        }
+        @Override public synchronized Exception getCause() {
+            return (Exception) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.TLEnvironment;
+import org.tinylisp.engine.Engine.TLExpression;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Least-recently-used cache of programs executed from strings by an Engine it has been set on with
+// Engine.setProgramCache, keyed by source text. A hit skips parsing, and also analysis when the
+// program last ran in the same environment. Programs are shared between runs, so quoted values in
+// them are too.
+public class ProgramCache {
+
+    private final int maxSize;
+    private final LinkedHashMap<String, Entry> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ProgramCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Size must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, ProgramCache.Entry> eldest) {
+                if (size() > ProgramCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    // Empties the cache and resets the stats
+    public synchronized void clear() {
+        entries.clear();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    synchronized Entry get(String source) {
+        Entry entry = entries.get(source);
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    synchronized Entry put(String source, TLExpression program) {
+        Entry entry = new Entry(program);
+        entries.put(source, entry);
+        return entry;
+    }
+
+    @Override public synchronized String toString() {
+        return String.format("ProgramCache{size=%d/%d, hits=%d, misses=%d, evictions=%d}", entries.size(), maxSize,
+                hits, misses, evictions);
+    }
+
+    static class Entry {
+        final TLExpression program;
+        // Analysis binds global references to one environment's cells, so only the last one is kept
+        private volatile Analyzed analyzed;
+        Entry(TLExpression program) {
+            this.program = program;
+        }
+        Analyzer.Node analyzed(TLEnvironment env) {
+            Analyzed analyzed = this.analyzed;
+            return analyzed != null && analyzed.env.get() == env ? analyzed.node : null;
+        }
+        void setAnalyzed(TLEnvironment env, Analyzer.Node node) {
+            analyzed = new Analyzed(env, node);
+        }
+    }
+
+    private static class Analyzed {
+        // Weak so that a cached program doesn't keep a discarded session alive
+        final WeakReference<TLEnvironment> env;
+        final Analyzer.Node node;
+        Analyzed(TLEnvironment env, Analyzer.Node node) {
+            this.env = new WeakReference<>(env);
+            this.node = node;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.*;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Lazy sequence operations. Each returns a TLSeqExpression over an iterator that pulls elements
+// from its source one at a time, only holding its position there, so a pipeline only ever holds
+// the element being computed. Sources that may be unbounded take a budget step per element.
+class Seqs {
+
+    // The numbers from start, stepping by step, up to but excluding end; unbounded if end is null
+    static TLSeqExpression range(final TLExpression start, final TLExpression end, final TLExpression step) {
+        final int direction = Engine.compare(step, Engine.expressionOf(0));
+        if (direction == 0) {
+            throw new IllegalArgumentException("Range step can't be zero");
+        }
+        return new TLSeqExpression(new Iterator<TLExpression>() {
+            private TLExpression next = start;
+            @Override public boolean hasNext() {
+                return end == null || Engine.compare(next, end) * direction < 0;
+            }
+            @Override public TLExpression next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                TLBudget.safepoint();
+                TLExpression value = next;
+                next = Engine.add(next, step);
+                return value;
+            }
+        });
+    }
+
+    // x, (f x), (f (f x)), ...
+    static TLSeqExpression iterate(final TLFunction function, final TLExpression x) {
+        return new TLSeqExpression(new Iterator<TLExpression>() {
+            private TLExpression next = x;
+            private boolean started;
+            @Override public boolean hasNext() {
+                return true;
+            }
+            @Override public TLExpression next() {
+                TLBudget.safepoint();
+                if (started) {
+                    next = call(function, next);
+                }
+                started = true;
+                return next;
+            }
+        });
+    }
+
+    static TLSeqExpression map(final TLFunction function, final TLExpression collection) {
+        final Iterator<TLExpression> it = elements(collection).iterator();
+        return new TLSeqExpression(new Iterator<TLExpression>() {
+            @Override public boolean hasNext() {
+                return it.hasNext();
+            }
+            @Override public TLExpression next() {
+                return call(function, it.next());
+            }
+        });
+    }
+
+    static TLSeqExpression filter(final TLFunction predicate, final TLExpression collection) {
+        final Iterator<TLExpression> it = elements(collection).iterator();
+        return new TLSeqExpression(new Iterator<TLExpression>() {
+            private TLExpression next;
+            private boolean found;
+            @Override public boolean hasNext() {
+                while (!found && it.hasNext()) {
+                    TLExpression candidate = it.next();
+                    if (call(predicate, candidate).asBoolean()) {
+                        next = candidate;
+                        found = true;
+                    }
+                }
+                return found;
+            }
+            @Override public TLExpression next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                TLExpression value = next;
+                next = null;
+                found = false;
+                return value;
+            }
+        });
+    }
+
+    static TLSeqExpression take(final long n, final TLExpression collection) {
+        final Iterator<TLExpression> it = elements(collection).iterator();
+        return new TLSeqExpression(new Iterator<TLExpression>() {
+            private long remaining = n;
+            @Override public boolean hasNext() {
+                return remaining > 0 && it.hasNext();
+            }
+            @Override public TLExpression next() {
+                if (remaining <= 0) {
+                    throw new NoSuchElementException();
+                }
+                remaining--;
+                return it.next();
+            }
+        });
+    }
+
+    static TLSeqExpression drop(final long n, final TLExpression collection) {
+        final Iterator<TLExpression> it = elements(collection).iterator();
+        return new TLSeqExpression(new Iterator<TLExpression>() {
+            private boolean skipped;
+            // The dropped elements aren't computed until the first one after them is needed
+            private void skip() {
+                if (!skipped) {
+                    for (long i = 0; i < n && it.hasNext(); i++) {
+                        it.next();
+                    }
+                    skipped = true;
+                }
+            }
+            @Override public boolean hasNext() {
+                skip();
+                return it.hasNext();
+            }
+            @Override public TLExpression next() {
+                skip();
+                return it.next();
+            }
+        });
+    }
+
+    // Iterates a collection argument. A sequence is taken out of the argument list first, so that
+    // the frames of the call don't keep the cells computed while consuming it reachable.
+    static Iterator<TLExpression> consume(TLListExpression args, int index) {
+        TLExpression collection = args.get(index);
+        if (collection instanceof TLSeqExpression) {
+            args.set(index, TLJavaObjectExpression.NULL);
+        }
+        return elements(collection).iterator();
+    }
+
+    static TLExpression nth(long n, Iterator<TLExpression> it) {
+        for (long i = 0; i < n && it.hasNext(); i++) {
+            it.next();
+        }
+        if (n < 0 || !it.hasNext()) {
+            throw new IndexOutOfBoundsException("Index: " + n);
+        }
+        return it.next();
+    }
+
+    static long count(Iterator<TLExpression> it) {
+        long count = 0;
+        for (; it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    // Lists, sequences, arrays, and Java Iterables
+    static Iterable<TLExpression> elements(TLExpression collection) {
+        if (collection instanceof TLSeqExpression) {
+            return (TLSeqExpression) collection;
+        } else if (collection instanceof TLListExpression) {
+            return (TLListExpression) collection;
+        } else if (collection instanceof TLArrayExpression) {
+            final TLArrayExpression array = (TLArrayExpression) collection;
+            return new Iterable<TLExpression>() {
+                @Override public Iterator<TLExpression> iterator() {
+                    return new Iterator<TLExpression>() {
+                        private int index;
+                        @Override public boolean hasNext() {
+                            return index < array.length();
+                        }
+                        @Override public TLExpression next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            return Engine.expressionOf(array.get(index++));
+                        }
+                    };
+                }
+            };
+        } else if (collection.getValue() instanceof Iterable) {
+            final Iterable<?> iterable = (Iterable<?>) collection.getValue();
+            return new Iterable<TLExpression>() {
+                @Override public Iterator<TLExpression> iterator() {
+                    final Iterator<?> it = iterable.iterator();
+                    return new Iterator<TLExpression>() {
+                        @Override public boolean hasNext() {
+                            return it.hasNext();
+                        }
+                        @Override public TLExpression next() {
+                            TLBudget.safepoint();
+                            return Engine.expressionOf(it.next());
+                        }
+                    };
+                }
+            };
+        }
+        throw new IllegalArgumentException("Not a sequence: " + collection);
+    }
+
+    // Iterators can't throw checked exceptions, so those are wrapped as they pass through
+    private static TLExpression call(TLFunction function, TLExpression arg) {
+        TLListExpression args = new TLListExpression();
+        args.add(arg);
+        try {
+            return function.invoke(args);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new TLRuntimeException(ex.toString(), ex);
+        }
+    }
+}
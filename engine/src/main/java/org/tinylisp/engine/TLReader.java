@@ -0,0 +1,197 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads expressions directly from a character stream in a single pass
+class TLReader {
+
+    private static final TLSymbolExpression QUOTE = TLSymbolExpression.of("quote");
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    // Characters read from the stream before the current buffer
+    private long buffered;
+    private final StringBuilder token = new StringBuilder();
+
+    TLReader(Reader in) {
+        this.in = in;
+    }
+
+    // Characters consumed so far
+    long offset() {
+        return buffered + position;
+    }
+
+    // Returns the next top-level form, or null at the end of input
+    TLExpression read() throws IOException {
+        skipWhitespaceAndComments();
+        return peek() == -1 ? null : readExpression();
+    }
+
+    private TLExpression readExpression() throws IOException {
+        skipWhitespaceAndComments();
+        int c = next();
+        switch (c) {
+            case -1:
+                throw new IllegalArgumentException("Unexpected end of input");
+            case '(': {
+                TLListExpression expression = new TLListExpression();
+                while (true) {
+                    skipWhitespaceAndComments();
+                    if (peek() == ')') {
+                        next();
+                        return expression;
+                    }
+                    expression.add(readExpression());
+                }
+            }
+            case '[': {
+                List<Object> values = new ArrayList<>();
+                while (true) {
+                    skipWhitespaceAndComments();
+                    if (peek() == ']') {
+                        next();
+                        return TLArrayExpression.from(values);
+                    }
+                    // Arrays can only contain atoms
+                    TLAtomExpression<?> atom = (TLAtomExpression<?>) readExpression();
+                    values.add(atom.getValue());
+                }
+            }
+            case ')':
+            case ']':
+                throw new IllegalArgumentException("Unexpected " + (char) c);
+            case '"':
+                return TLJavaObjectExpression.of(readString());
+            case '\'': {
+                TLListExpression expression = new TLListExpression();
+                expression.add(QUOTE);
+                expression.add(readExpression());
+                return expression;
+            }
+            default:
+                token.setLength(0);
+                token.append((char) c);
+                while (peek() != -1 && !Engine.isBreakingChar((char) peek())) {
+                    token.append((char) next());
+                }
+                return atomize(token.toString());
+        }
+    }
+
+    private String readString() throws IOException {
+        token.setLength(0);
+        while (true) {
+            int c = next();
+            if (c == -1) {
+                throw new IllegalArgumentException("Unexpected end of input in string");
+            } else if (c == '"') {
+                return token.toString();
+            } else if (c == '\\') {
+                c = next();
+                if (c == -1) {
+                    throw new IllegalArgumentException("Unexpected end of input in string");
+                }
+            }
+            token.append((char) c);
+        }
+    }
+
+    private void skipWhitespaceAndComments() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c == ';') {
+                while (c != -1 && c != '\n') {
+                    c = next();
+                }
+            } else if (c != -1 && Character.isWhitespace(c)) {
+                next();
+            } else {
+                return;
+            }
+        }
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private int next() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = in.read(buffer, 0, buffer.length);
+        } while (read == 0);
+        buffered += limit;
+        position = 0;
+        limit = Math.max(read, 0);
+        return read > 0;
+    }
+
+    static TLExpression atomize(String token) {
+        if (isInteger(token)) {
+            try {
+                return TLLongExpression.of(Long.parseLong(token));
+            } catch (NumberFormatException ex) {
+                // Too big for a long
+                return TLJavaObjectExpression.of(new BigInteger(token));
+            }
+        }
+        if (mayBeDouble(token)) {
+            try {
+                return TLDoubleExpression.of(Double.parseDouble(token));
+            } catch (NumberFormatException ex) {
+                // Not a double
+            }
+        }
+        if ("null".equals(token)) {
+            return TLJavaObjectExpression.NULL;
+        } else if ("true".equals(token)) {
+            return TLJavaObjectExpression.TRUE;
+        } else if ("false".equals(token)) {
+            return TLJavaObjectExpression.FALSE;
+        } else {
+            return TLSymbolExpression.of(token);
+        }
+    }
+
+    // Cheap pre-check so that ordinary symbols don't pay for a NumberFormatException
+    private static boolean mayBeDouble(String token) {
+        int start = token.startsWith("-") || token.startsWith("+") ? 1 : 0;
+        if (start == token.length()) {
+            return false;
+        }
+        char c = token.charAt(start);
+        return (c >= '0' && c <= '9') || c == '.' || c == 'N' || c == 'I';
+    }
+
+    private static boolean isInteger(String token) {
+        int start = token.startsWith("-") || token.startsWith("+") ? 1 : 0;
+        if (start == token.length()) {
+            return false;
+        }
+        for (int i = start; i < token.length(); i++) {
+            if (token.charAt(i) < '0' || token.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,163 @@
+package org.tinylisp.engine;
+
+import org.tinylisp.engine.Engine.*;
+
+import java.util.Iterator;
+
+// Transducers: functions that take a reducing function (acc x) -> acc and return another one.
+// Composing them with comp and running the result with transduce or into processes every stage
+// for one element before moving to the next, so no intermediate collections are built.
+//
+// The built-in transducers produce Reducers, which call each other directly; any function of
+// one argument returning a two-argument function can be used as a transducer as well.
+class Transducers {
+
+    abstract static class Reducer extends TLFunction {
+        abstract TLExpression step(TLExpression acc, TLExpression x) throws Exception;
+        @Override public TLExpression invoke(TLListExpression args) throws Exception {
+            return step(args.get(0), args.get(1));
+        }
+    }
+
+    // Returned by a step to end the reduction early, e.g. once taking has seen enough elements
+    static final class Reduced implements TLExpression {
+        final TLExpression value;
+        Reduced(TLExpression value) {
+            this.value = value;
+        }
+        @Override public Object getValue() {
+            return value.getValue();
+        }
+        @Override public boolean asBoolean() {
+            return value.asBoolean();
+        }
+        @Override public String toString() {
+            return value.toString();
+        }
+    }
+
+    private abstract static class Transducer extends TLFunction {
+        abstract Reducer apply(Reducer rf);
+        @Override public TLExpression invoke(TLListExpression args) {
+            return apply(reducer((TLFunction) args.get(0)));
+        }
+    }
+
+    static TLFunction mapping(final TLFunction function) {
+        return new Transducer() {
+            @Override Reducer apply(final Reducer rf) {
+                return new Reducer() {
+                    @Override TLExpression step(TLExpression acc, TLExpression x) throws Exception {
+                        return rf.step(acc, call(function, x));
+                    }
+                };
+            }
+        };
+    }
+
+    static TLFunction filtering(final TLFunction predicate) {
+        return new Transducer() {
+            @Override Reducer apply(final Reducer rf) {
+                return new Reducer() {
+                    @Override TLExpression step(TLExpression acc, TLExpression x) throws Exception {
+                        return call(predicate, x).asBoolean() ? rf.step(acc, x) : acc;
+                    }
+                };
+            }
+        };
+    }
+
+    // Each reduction gets its own count, since apply is called once per transduce
+    static TLFunction taking(final long n) {
+        return new Transducer() {
+            @Override Reducer apply(final Reducer rf) {
+                return new Reducer() {
+                    private long remaining = n;
+                    @Override TLExpression step(TLExpression acc, TLExpression x) throws Exception {
+                        if (remaining <= 0) {
+                            return new Reduced(acc);
+                        }
+                        acc = rf.step(acc, x);
+                        return --remaining == 0 && !(acc instanceof Reduced) ? new Reduced(acc) : acc;
+                    }
+                };
+            }
+        };
+    }
+
+    // (comp f g h) calls h with the arguments, then g, then f. Composed transducers therefore see
+    // elements in the order they're written.
+    static TLFunction comp(final TLListExpression functions) {
+        return new TLFunction() {
+            @Override public TLExpression invoke(TLListExpression args) throws Exception {
+                if (functions.isEmpty()) {
+                    return args.get(0);
+                }
+                TLFunction[] fs = functions.toArray(new TLFunction[0]);
+                TLExpression result = fs[fs.length - 1].invoke(args);
+                for (int i = fs.length - 2; i >= 0; i--) {
+                    TLListExpression next = new TLListExpression();
+                    next.add(result);
+                    result = fs[i].invoke(next);
+                }
+                return result;
+            }
+        };
+    }
+
+    static TLExpression transduce(TLFunction transducer, TLFunction function, TLExpression init, Iterator<TLExpression> elements) throws Exception {
+        return reduce(transform(transducer, reducer(function)), init, elements);
+    }
+
+    // Appends to a copy of the target list
+    static TLExpression into(TLExpression to, TLFunction transducer, Iterator<TLExpression> elements) throws Exception {
+        if (!(to instanceof TLListExpression)) {
+            throw new IllegalArgumentException("Can't collect into " + to);
+        }
+        Reducer append = new Reducer() {
+            @Override TLExpression step(TLExpression acc, TLExpression x) {
+                ((TLListExpression) acc).add(x);
+                return acc;
+            }
+        };
+        Reducer rf = transducer == null ? append : transform(transducer, append);
+        return reduce(rf, new TLListExpression((TLListExpression) to), elements);
+    }
+
+    private static Reducer transform(TLFunction transducer, Reducer rf) throws Exception {
+        TLListExpression args = new TLListExpression();
+        args.add(rf);
+        return reducer((TLFunction) transducer.invoke(args));
+    }
+
+    private static TLExpression reduce(Reducer rf, TLExpression init, Iterator<TLExpression> elements) throws Exception {
+        TLExpression acc = init;
+        while (elements.hasNext()) {
+            acc = rf.step(acc, elements.next());
+            if (acc instanceof Reduced) {
+                return ((Reduced) acc).value;
+            }
+        }
+        return acc;
+    }
+
+    private static Reducer reducer(final TLFunction function) {
+        if (function instanceof Reducer) {
+            return (Reducer) function;
+        }
+        return new Reducer() {
+            @Override TLExpression step(TLExpression acc, TLExpression x) throws Exception {
+                TLListExpression args = new TLListExpression();
+                args.add(acc);
+                args.add(x);
+                return function.invoke(args);
+            }
+        };
+    }
+
+    private static TLExpression call(TLFunction function, TLExpression x) throws Exception {
+        TLListExpression args = new TLListExpression();
+        args.add(x);
+        return function.invoke(args);
+    }
+}
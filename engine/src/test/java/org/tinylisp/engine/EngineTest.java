@@ -3,12 +3,23 @@ package org.tinylisp.engine;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.Reader;
+import java.io.StringReader;
 import java.lang.reflect.Array;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.RoundingMode;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -107,6 +118,105 @@ public class EngineTest {
         assertEquals("b", engine.execute("(toString 11 16)", env).getValue());
     }
 
+    public static String describe(long a, double b, BigDecimal c, Long d) {
+        return a + " " + b + " " + c + " " + d;
+    }
+
+    public static void raise(String message) {
+        throw new StackOverflowError(message);
+    }
+
+    public static int sum(int a, int b, int c, int d, int e) {
+        return a + b + c + d + e;
+    }
+
+    @Test
+    public void testMethodConversions() throws Exception {
+        env.put(Engine.TLSymbolExpression.of("describe"),
+                Engine.TLMethodFunction.of(null, getClass().getMethod("describe", long.class, double.class, BigDecimal.class, Long.class)));
+        env.put(Engine.TLSymbolExpression.of("sum"),
+                Engine.TLMethodFunction.of(null, getClass().getMethod("sum", int.class, int.class, int.class, int.class, int.class)));
+        env.put(Engine.TLSymbolExpression.of("concat"),
+                Engine.TLMethodFunction.of("foo", String.class.getMethod("concat", String.class)));
+        env.put(Engine.TLSymbolExpression.of("max"),
+                Engine.TLMethodFunction.of(null, Math.class.getMethod("max", int.class, int.class)));
+        // Integers widen to long, double, BigDecimal, and boxed Long
+        assertEquals("1 2.0 3 4", engine.execute("(describe 1 2 3 4)", env).getValue());
+        assertEquals("1 2.5 3.5 null", engine.execute("(describe 1 2.5 3.5 null)", env).getValue());
+        assertEquals(15, engine.execute("(sum 1 2 3 4 5)", env).getValue());
+        assertEquals("foobar", engine.execute("(concat \"bar\")", env).getValue());
+        assertEquals(2, engine.execute("(max 1 2)", env).getValue());
+        // Narrowing is not allowed
+        for (String bad : new String[] {"(max 1 2.5)", "(max 1 10000000000)", "(concat 1)", "(max 1)", "(max 1 2 3)"}) {
+            try {
+                engine.execute(bad, env);
+                fail("Should fail: " + bad);
+            } catch (Engine.TLRuntimeException ex) {
+                assertTrue(ex.getCause() instanceof IllegalArgumentException);
+            }
+        }
+        // Exceptions from the method itself are reported directly
+        env.put(Engine.TLSymbolExpression.of("parseInt"),
+                Engine.TLMethodFunction.of(null, Integer.class.getMethod("parseInt", String.class)));
+        try {
+            engine.execute("(parseInt \"x\")", env);
+            fail("Should fail to parse");
+        } catch (Engine.TLRuntimeException ex) {
+            assertTrue(ex.getCause() instanceof NumberFormatException);
+        }
+    }
+
+    @Test
+    public void testReflectiveInvoker() throws Exception {
+        Method method = getClass().getMethod("describe", long.class, double.class, BigDecimal.class, Long.class);
+        MethodInvoker invoker = new MethodInvoker.ReflectiveInvoker(method, MethodInvoker.convertersFor(method));
+        Engine.TLListExpression args = (Engine.TLListExpression) engine.execute("'(1 2 3 4)", env);
+        assertEquals("1 2.0 3 4", invoker.invoke(null, args));
+        // Errors are thrown as is, as by the method handle invoker
+        Method raise = getClass().getMethod("raise", String.class);
+        for (MethodInvoker each : new MethodInvoker[] {new MethodInvoker.ReflectiveInvoker(raise, MethodInvoker.convertersFor(raise)),
+                MethodInvoker.of(raise)}) {
+            try {
+                each.invoke(null, (Engine.TLListExpression) engine.execute("'(\"boom\")", env));
+                fail("Should fail");
+            } catch (StackOverflowError ex) {
+                assertEquals("boom", ex.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testMemberCalls() throws Exception {
+        Engine.TLEnvironment env = Engine.defaultEnvironment();
+        env.put(Engine.TLSymbolExpression.of("Math"), Engine.expressionOf(Math.class));
+        assertEquals(3, engine.execute("(. \"abc\" \"length\")", env).getValue());
+        assertEquals("BC", engine.execute("(. (. \"abc\" \"substring\" 1) \"toUpperCase\")", env).getValue());
+        // Overloads are chosen by runtime argument classes
+        assertEquals(2, engine.execute("(. Math \"max\" 1 2)", env).getValue());
+        assertEquals(10000000000L, engine.execute("(. Math \"max\" 1 10000000000)", env).getValue());
+        assertEquals(2.5, engine.execute("(. Math \"max\" 1 2.5)", env).getValue());
+        // Static methods of Class are reachable through any Class
+        assertEquals(Math.class, engine.execute("(. (. \"\" \"getClass\") \"forName\" \"java.lang.Math\")", env).getValue());
+        assertEquals("java.lang.Math", engine.execute("(. Math \"getName\")", env).getValue());
+        // Public methods of non-public classes are called through a public interface
+        env.put(Engine.TLSymbolExpression.of("items"), Engine.expressionOf(Arrays.asList(1, 2)));
+        assertEquals(true, engine.execute("(. (. items \"iterator\") \"hasNext\")", env).getValue());
+        // One call site sees several receiver classes
+        engine.execute("(def len (lambda (x) (. x \"size\")))", env);
+        assertEquals(2, engine.execute("(len items)", env).getValue());
+        env.put(Engine.TLSymbolExpression.of("set"), Engine.expressionOf(Collections.singleton("a")));
+        assertEquals(1, engine.execute("(len set)", env).getValue());
+        assertEquals(0, engine.execute("(len (list))", env).getValue());
+        for (String bad : new String[] {"(. \"abc\" \"nope\")", "(. null \"length\")", "(. \"abc\" \"charAt\" 2.5)"}) {
+            try {
+                engine.execute(bad, env);
+                fail("Should fail: " + bad);
+            } catch (Engine.TLRuntimeException ex) {
+                // Should fail
+            }
+        }
+    }
+
     @Test
     public void testDef() throws Exception {
         assertEquals("Result of `def' is the value",
@@ -123,6 +233,523 @@ public class EngineTest {
         assertEquals(3, engine.execute("((lambda (x) 1 3) 1)", env).getValue());
     }
 
+    @Test
+    public void testLambdaFactory() throws Exception {
+        Engine.TLEnvironment env = engine.newEnvironment();
+        Engine.TLListExpression params = (Engine.TLListExpression) engine.parse("(x)");
+        Engine.TLLambdaFunction f = Engine.TLLambdaFunction.of(params, (Engine.TLListExpression) engine.parse("(+ x 1)"), env, engine);
+        assertEquals(42, f.invoke((Engine.TLListExpression) engine.parse("(41)")).getValue());
+        // The body is in tail position
+        env.put(Engine.TLSymbolExpression.of("f"), Engine.TLLambdaFunction.of(params,
+                (Engine.TLListExpression) engine.parse("(if (< 0 x) (f (- x 1)) 42)"), env, engine));
+        assertEquals(42, engine.execute("(f 100000)", env).getValue());
+    }
+
+    @Test
+    public void testGlobalCells() throws Exception {
+        Engine.TLEnvironment env = Engine.defaultEnvironment();
+        // References to globals that don't exist yet are bound when they are defined
+        engine.execute("(def f (lambda (x) (g x)))", env);
+        try {
+            engine.execute("(f 1)", env);
+            fail("g is undefined");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getMessage().contains("Symbol undefined: g"));
+        }
+        assertFalse(env.containsKey(Engine.TLSymbolExpression.of("g")));
+        assertFalse(env.keySet().contains(Engine.TLSymbolExpression.of("g")));
+        engine.execute("(def g (lambda (x) (+ x 1)))", env);
+        assertEquals(2, engine.execute("(f 1)", env).getValue());
+        // Redefinition is seen by existing references
+        engine.execute("(def g (lambda (x) (* x 10)))", env);
+        assertEquals(10, engine.execute("(f 1)", env).getValue());
+        env.put(Engine.TLSymbolExpression.of("g"), env.get(Engine.TLSymbolExpression.of("list")));
+        assertEquals("(1)", engine.execute("(f 1)", env).toString());
+        env.remove(Engine.TLSymbolExpression.of("g"));
+        assertFalse(env.containsKey(Engine.TLSymbolExpression.of("g")));
+        try {
+            engine.execute("(f 1)", env);
+            fail("g is undefined");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getMessage().contains("Symbol undefined: g"));
+        }
+        // Copies have their own cells
+        Engine.TLEnvironment copy = new Engine.TLEnvironment(env);
+        engine.execute("(def f 1)", copy);
+        assertEquals(1, copy.get(Engine.TLSymbolExpression.of("f")).getValue());
+        assertTrue(env.get(Engine.TLSymbolExpression.of("f")) instanceof Engine.TLLambdaFunction);
+        assertEquals(env.size(), copy.size());
+    }
+
+    @Test
+    public void testSessionEnvironments() throws Exception {
+        Engine.TLEnvironment first = engine.newEnvironment();
+        Engine.TLEnvironment second = engine.newEnvironment();
+        Engine.TLSymbolExpression car = Engine.TLSymbolExpression.of("car");
+        Engine.TLSymbolExpression plus = Engine.TLSymbolExpression.of("+");
+        // Builtins are shared rather than recreated
+        assertSame(first.get(car), second.get(car));
+        assertSame(first.get(car), Engine.defaultEnvironment().get(car));
+        // Definitions and redefinitions stay in their session
+        engine.execute("(def x 1)", first);
+        engine.execute("(def + -)", first);
+        assertEquals(-1, engine.execute("(+ x 2)", first).getValue());
+        assertFalse(second.containsKey(Engine.TLSymbolExpression.of("x")));
+        assertEquals(3, engine.execute("(+ 1 2)", second).getValue());
+        second.remove(plus);
+        assertFalse(second.containsKey(plus));
+        assertFalse(second.keySet().contains(plus));
+        assertTrue(second.containsKey(car));
+        assertEquals(first.size(), second.size() + 2);
+        // Session builtins are bound to their own environment
+        engine.execute("(eval '(def y 2))", first);
+        assertTrue(first.containsKey(Engine.TLSymbolExpression.of("y")));
+        assertFalse(second.containsKey(Engine.TLSymbolExpression.of("y")));
+        assertEquals(3, engine.execute("(exec \"(- y -1)\")", first).getValue());
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        final Engine engine = new Engine();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                final int n = i;
+                results.add(executor.submit(new Callable<Object>() {
+                    @Override public Object call() throws Exception {
+                        Engine.TLEnvironment env = engine.newEnvironment();
+                        engine.execute("(def sum (lambda (n acc) (if (< n 1) acc (sum (- n 1) (+ acc n)))))", env);
+                        return engine.execute("(sum " + (1000 + n) + " 0)", env).getValue();
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                int n = 1000 + i;
+                assertEquals(n * (n + 1) / 2, results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        Engine engine = new Engine();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        engine.setPool(pool);
+        engine.setParallelThreshold(10);
+        try {
+            Engine.TLEnvironment env = engine.newEnvironment();
+            engine.execute("(def range (lambda (n acc) (if (< n 1) acc (range (- n 1) (cons n acc)))))", env);
+            engine.execute("(def items (range 1000 ()))", env);
+            Engine.TLExpression squares = engine.execute("(pmap (lambda (x) (* x x)) items)", env);
+            assertTrue(squares instanceof Engine.TLListExpression);
+            assertEquals(engine.execute("(map (lambda (x) (* x x)) items)", env), squares);
+            assertEquals(500, engine.execute("(length (pfilter (lambda (x) (< x 501)) items))", env).getValue());
+            assertEquals(1, engine.execute("(car (pfilter (lambda (x) (< x 501)) items))", env).getValue());
+            assertEquals(500500, engine.execute("(preduce + 0 items)", env).getValue());
+            // Arrays produce arrays
+            Object doubled = engine.execute("(pmap (lambda (x) (* x 2)) [1 2 3])", env).getValue();
+            assertArrayEquals(new int[] {2, 4, 6}, (int[]) doubled);
+            assertArrayEquals(new double[] {1.5}, (double[]) engine.execute("(pfilter (lambda (x) (> x 1)) [0.5 1.5])", env).getValue(), 0);
+            assertEquals(0, engine.execute("(length (pmap car ()))", env).getValue());
+            assertEquals(7, engine.execute("(preduce + 7 ())", env).getValue());
+            // Errors from worker threads keep their message
+            try {
+                engine.execute("(pmap (lambda (x) (nope x)) items)", env);
+                fail("Should fail");
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getMessage().contains("Symbol undefined: nope"));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void assertStopped(Engine engine, String program, Engine.TLEnvironment env, Engine.TLBudget budget, String message) throws Exception {
+        try {
+            engine.execute(program, env, budget);
+            fail("Should stop: " + program);
+        } catch (Engine.TLRuntimeException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith(message));
+        }
+    }
+
+    @Test
+    public void testBudgets() throws Exception {
+        final Engine engine = new Engine();
+        final Engine.TLEnvironment env = engine.newEnvironment();
+        engine.execute("(def spin (lambda (n) (spin (+ n 1))))", env);
+        Engine.TLBudget budget = new Engine.TLBudget(1000, Engine.TLBudget.UNLIMITED);
+        assertEquals(6, engine.execute("(+ 1 2 3)", env, budget).getValue());
+        assertTrue(budget.getSteps() > 0);
+        assertStopped(engine, "(spin 0)", env, budget, "Step limit exceeded");
+        assertStopped(engine, "(length (range))", env, new Engine.TLBudget(100000, Engine.TLBudget.UNLIMITED), "Step limit exceeded");
+        assertStopped(engine, "(spin 0)", env, new Engine.TLBudget(Engine.TLBudget.UNLIMITED, 50), "Time limit exceeded");
+        // The budget only applies to the evaluation it was given to
+        assertEquals(3, engine.execute("(length (list 1 2 3))", env).getValue());
+        // Cancelling from another thread
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Engine.TLBudget cancellable = new Engine.TLBudget();
+            Future<?> future = executor.submit(new Callable<Void>() {
+                @Override public Void call() throws Exception {
+                    assertStopped(engine, "(spin 0)", env, cancellable, "Evaluation cancelled");
+                    return null;
+                }
+            });
+            Thread.sleep(50);
+            cancellable.cancel();
+            future.get();
+            // Interrupting the evaluating thread
+            future = executor.submit(new Callable<Void>() {
+                @Override public Void call() throws Exception {
+                    assertStopped(engine, "(spin 0)", env, new Engine.TLBudget(), "Evaluation interrupted");
+                    return null;
+                }
+            });
+            Thread.sleep(50);
+            future.cancel(true);
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        // Parallel workers run under the caller's budget
+        ForkJoinPool pool = new ForkJoinPool(2);
+        engine.setPool(pool);
+        engine.setParallelThreshold(1);
+        try {
+            assertStopped(engine, "(pmap spin (list 1 2 3 4))", env, new Engine.TLBudget(10000, Engine.TLBudget.UNLIMITED), "Step limit exceeded");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Engine.TLProfiler.Entry entry(Engine.TLProfiler profiler, String name) {
+        for (Engine.TLProfiler.Entry entry : profiler.getEntries()) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testProfiler() throws Exception {
+        Engine.TLEnvironment env = engine.newEnvironment();
+        engine.execute("(def fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))", env);
+        Engine.TLProfiler profiler = (Engine.TLProfiler) engine.execute("(profile (fib 15))", env).getValue();
+        assertEquals(1973, entry(profiler, "fib").getCalls());
+        assertEquals(986, entry(profiler, "+").getCalls());
+        Engine.TLProfiler.Entry fib = entry(profiler, "fib");
+        assertTrue(fib.getSelfNanos() > 0 && fib.getTotalNanos() >= fib.getSelfNanos());
+        assertTrue(entry(profiler, "<").getTotalNanos() <= fib.getTotalNanos());
+        String collapsed = profiler.collapsed();
+        assertTrue(collapsed, collapsed.startsWith("fib") || collapsed.contains("\nfib"));
+        assertTrue(collapsed, collapsed.contains("fib;fib"));
+        for (String line : collapsed.split("\n")) {
+            assertTrue(line, line.matches("[^ ]+ \\d+"));
+        }
+        assertTrue(profiler.toString().contains("fib"));
+        // Started around any evaluation; tail calls replace their caller and anonymous lambdas
+        // are named lambda
+        engine.execute("(def down (lambda (n) (if (< n 1) n (down (- n 1)))))", env);
+        profiler = new Engine.TLProfiler();
+        profiler.start();
+        try {
+            engine.execute("(down 100)", env);
+            engine.execute("(map (lambda (x) x) (list 1 2))", env);
+        } finally {
+            profiler.stop();
+        }
+        assertEquals(101, entry(profiler, "down").getCalls());
+        assertEquals(2, entry(profiler, "lambda").getCalls());
+        assertFalse(profiler.collapsed().contains("down;down"));
+        assertNull(Engine.TLProfiler.current());
+        // Stops cleanly when the evaluation fails
+        engine.execute("(def bad (lambda () (nope)))", env);
+        profiler = new Engine.TLProfiler();
+        profiler.start();
+        try {
+            engine.execute("(bad)", env);
+            fail("Should fail");
+        } catch (RuntimeException ex) {
+            // Should fail
+        } finally {
+            profiler.stop();
+        }
+        assertEquals(1, entry(profiler, "bad").getCalls());
+    }
+
+    @Test
+    public void testProgramCache() throws Exception {
+        ProgramCache cache = new ProgramCache(2);
+        engine.setProgramCache(cache);
+        EngineMetrics metrics = new EngineMetrics();
+        engine.setListener(metrics);
+        Engine.TLEnvironment env = engine.newEnvironment();
+        engine.execute("(def n 0)", env);
+        for (int i = 0; i < 3; i++) {
+            engine.execute("(def n (+ n 1))", env);
+        }
+        assertEquals(3, env.get(Engine.TLSymbolExpression.of("n")).getValue());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        // Hits aren't parsed again
+        assertEquals(2, metrics.getParses());
+        // The exec builtin goes through the cache too
+        assertEquals(4, engine.execute("(exec \"(def n (+ n 1))\")", env).getValue());
+        assertEquals(3, cache.getHits());
+        // Cached programs are reanalyzed for other environments
+        Engine.TLEnvironment other = engine.newEnvironment();
+        engine.execute("(def n 10)", other);
+        assertEquals(11, engine.execute("(def n (+ n 1))", other).getValue());
+        assertEquals(5, engine.execute("(def n (+ n 1))", env).getValue());
+        assertEquals(5, cache.getHits());
+        // Least recently used programs are evicted
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getEvictions());
+        // Failed parses aren't cached
+        for (int i = 0; i < 2; i++) {
+            try {
+                engine.execute("(f 1", env);
+                fail("Should fail");
+            } catch (RuntimeException ex) {
+                // Should fail
+            }
+        }
+        assertEquals(2, cache.size());
+        cache.clear();
+        assertEquals(0, cache.getHits());
+        engine.setProgramCache(null);
+        engine.setListener(null);
+        assertEquals(6, engine.execute("(def n (+ n 1))", env).getValue());
+    }
+
+    @Test
+    public void testTailCallMetrics() throws Exception {
+        EngineMetrics metrics = new EngineMetrics();
+        Engine.TLEnvironment env = engine.newEnvironment();
+        engine.execute("(def loop (lambda (n) (if (<= n 0) n (loop (- n 1)))))", env);
+        engine.execute("(def g (lambda (x) (loop x)))", env);
+        engine.setListener(metrics);
+        engine.execute("(g 100)", env);
+        // g, 101 tail calls to loop, and 101 calls each to <= and -, except for the last -
+        assertEquals(1 + 101 + 101 + 100, metrics.getCalls());
+        try {
+            engine.execute("(g \"x\")", env);
+            fail("Should fail");
+        } catch (RuntimeException ex) {
+            // Should fail
+        }
+        // g, loop, and <= fail
+        assertEquals(3, metrics.getCallErrors());
+        engine.setListener(null);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        EngineMetrics metrics = new EngineMetrics("test");
+        engine.setListener(metrics);
+        Engine.TLEnvironment env = engine.newEnvironment();
+        engine.execute("(def f (lambda (x) (+ x 1)))", env);
+        assertEquals(3, engine.execute("(f (f 1))", env).getValue());
+        engine.execute(new StringReader("(f 1) (f 2)"), env);
+        try {
+            engine.execute("(f nope)", env);
+            fail("Should fail");
+        } catch (RuntimeException ex) {
+            // Should fail
+        }
+        try {
+            engine.execute("(f 1", env);
+            fail("Should fail");
+        } catch (RuntimeException ex) {
+            // Should fail
+        }
+        assertEquals(5, metrics.getEvaluations());
+        assertEquals(1, metrics.getEvaluationErrors());
+        // The reader also reports reaching the end
+        assertEquals(7, metrics.getParses());
+        assertEquals(1, metrics.getParseErrors());
+        assertEquals("(def f (lambda (x) (+ x 1)))(f (f 1))(f 1) (f 2)(f nope)(f 1".length(), metrics.getParsedChars());
+        assertEquals(8, metrics.getCalls());
+        assertEquals(0, metrics.getCallErrors());
+        assertTrue(metrics.getEvaluationP50Millis() > 0);
+        assertTrue(metrics.getEvaluationP50Millis() <= metrics.getEvaluationP99Millis());
+        assertTrue(metrics.getEvaluationP999Millis() <= metrics.getEvaluationMaxMillis());
+        metrics.reset();
+        assertEquals(0, metrics.getEvaluations());
+        assertEquals(0, metrics.getEvaluationP99Millis(), 0);
+        // Buckets are contiguous and within 1/8 of their values
+        for (long value : new long[] {0, 1, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE}) {
+            int index = EngineMetrics.Histogram.index(value);
+            assertTrue(value <= EngineMetrics.Histogram.upperBound(index));
+            assertTrue(index == 0 || value > EngineMetrics.Histogram.upperBound(index - 1));
+            assertTrue(EngineMetrics.Histogram.upperBound(index) - value <= value / 8);
+        }
+        EngineMetrics.Histogram histogram = new EngineMetrics.Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(990000, histogram.percentile(0.99), 990000 / 8);
+        assertEquals(1000000, histogram.max());
+        // Published as an MBean
+        metrics.register();
+        try {
+            javax.management.ObjectName name = new javax.management.ObjectName("org.tinylisp:type=Engine,name=\"test\"");
+            engine.execute("(f 1)", env);
+            assertEquals(1L, java.lang.management.ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Evaluations"));
+        } finally {
+            metrics.unregister();
+        }
+        engine.setListener(null);
+        engine.execute("(f 1)", env);
+        assertEquals(1, metrics.getEvaluations());
+    }
+
+    @Test
+    public void testArrayKernels() throws Exception {
+        Engine.TLEnvironment env = Engine.defaultEnvironment();
+        assertArrayEquals(new int[] {5, 7, 9}, (int[]) engine.execute("(+ [1 2 3] [4 5 6])", env).getValue());
+        assertArrayEquals(new int[] {11, 12, 13}, (int[]) engine.execute("(+ [1 2 3] 10)", env).getValue());
+        assertArrayEquals(new int[] {9, 8, 7}, (int[]) engine.execute("(- 10 [1 2 3])", env).getValue());
+        assertArrayEquals(new int[] {2, 4, 6}, (int[]) engine.execute("(scale [1 2 3] 2)", env).getValue());
+        assertArrayEquals(new double[] {1.5, 3, 4.5}, (double[]) engine.execute("(* [1 2 3] 1.5)", env).getValue(), 0);
+        assertArrayEquals(new double[] {0.5, 1, 1.5}, (double[]) engine.execute("(/ [1 2 3] 2)", env).getValue(), 0);
+        assertArrayEquals(new double[] {1.5, 2.5}, (double[]) engine.execute("(+ [1 2] [0.5 0.5])", env).getValue(), 0);
+        // Integer results stay exact
+        assertArrayEquals(new long[] {4294967294L, 2}, (long[]) engine.execute("(* [2147483647 1] 2)", env).getValue());
+        assertEquals(4294967294L, engine.execute("(sum [2147483647 2147483647])", env).getValue());
+        assertEquals(6, engine.execute("(sum [1 2 3])", env).getValue());
+        assertEquals(6.5, engine.execute("(sum [1.5 2.0 3.0])", env).getValue());
+        assertEquals(32, engine.execute("(dot [1 2 3] [4 5 6])", env).getValue());
+        assertEquals(3.5, engine.execute("(dot [1 2] [1.5 1.0])", env).getValue());
+        assertEquals(-2, engine.execute("(min [3 -2 5])", env).getValue());
+        assertEquals(5.5, engine.execute("(max [3.0 -2.0 5.5])", env).getValue());
+        assertEquals(1, engine.execute("(min 3 1 2)", env).getValue());
+        assertEquals(3, engine.execute("(max 3 1 2)", env).getValue());
+        assertArrayEquals(new boolean[] {false, false, true}, (boolean[]) engine.execute("(mask> [1 2 3] 2)", env).getValue());
+        assertArrayEquals(new boolean[] {true, false}, (boolean[]) engine.execute("(mask= [1 2] [1.0 3.0])", env).getValue());
+        assertArrayEquals(new int[] {3, 4}, (int[]) engine.execute("(let* ((a [1 2 3 4])) (select a (mask>= a 3)))", env).getValue());
+        assertEquals("[false true]", engine.execute("(mask< [2 1] [2 2])", env).toString());
+        // Doubles compare as they do in the scalar builtins
+        double[] special = {-0.0, 0.0, Double.NaN, 1.0};
+        env.put(Engine.TLSymbolExpression.of("xs"), Engine.expressionOf(special));
+        for (String op : new String[] {"<", ">", "<=", ">=", "="}) {
+            for (double y : special) {
+                env.put(Engine.TLSymbolExpression.of("y"), Engine.TLDoubleExpression.of(y));
+                boolean[] mask = (boolean[]) engine.execute("(mask" + op + " xs y)", env).getValue();
+                for (int i = 0; i < special.length; i++) {
+                    env.put(Engine.TLSymbolExpression.of("x"), Engine.TLDoubleExpression.of(special[i]));
+                    boolean expected = op.equals("=") ? special[i] == y : engine.execute("(" + op + " x y)", env).asBoolean();
+                    assertEquals(op + " " + special[i] + " " + y, expected, mask[i]);
+                }
+            }
+        }
+        assertArrayEquals(new int[] {2}, (int[]) engine.execute("(select [1 2] (mask< [-0.0 -1.0] 0.0))", env).getValue());
+        assertEquals(-0.0, engine.execute("(min xs)", env).getValue());
+        assertEquals(1.0, engine.execute("(max xs)", env).getValue());
+        assertEquals(engine.execute("(min 0.0 -0.0)", env).getValue(), engine.execute("(min [0.0 -0.0])", env).getValue());
+        env.put(Engine.TLSymbolExpression.of("ys"), Engine.expressionOf(new double[] {1.0, Double.NaN, 2.0}));
+        assertEquals(1.0, engine.execute("(min ys)", env).getValue());
+        assertEquals(2.0, engine.execute("(max ys)", env).getValue());
+        // Large arrays
+        int[] big = new int[1000000];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = i;
+        }
+        env.put(Engine.TLSymbolExpression.of("big"), Engine.expressionOf(big));
+        assertEquals(499999500000L, engine.execute("(sum big)", env).getValue());
+        assertEquals(999999, engine.execute("(max (- (* big 2) big))", env).getValue());
+        assertEquals(500000, engine.execute("(length (select big (mask< big 500000)))", env).getValue());
+        for (String bad : new String[] {"(+ [1 2] [1 2 3])", "(/ [1 2] 0)", "(min [])", "(sum [\"a\"])", "(select [1 2] [1 2])"}) {
+            try {
+                engine.execute(bad, env);
+                fail("Should fail: " + bad);
+            } catch (Engine.TLRuntimeException | ArithmeticException ex) {
+                // Should fail
+            }
+        }
+    }
+
+    @Test
+    public void testLazySequences() throws Exception {
+        Engine.TLEnvironment env = Engine.defaultEnvironment();
+        assertEquals("(0 1 2 3 4)", engine.execute("(realize (range 5))", env).toString());
+        assertEquals("(2 4 6)", engine.execute("(realize (range 2 8 2))", env).toString());
+        assertEquals("(3 2 1)", engine.execute("(realize (range 3 0 -1))", env).toString());
+        assertEquals("(0.5 1)", engine.execute("(realize (range 0.5 1.5 0.5))", env).toString());
+        assertEquals("(1 2 4 8)", engine.execute("(realize (take 4 (iterate (lambda (x) (* x 2)) 1)))", env).toString());
+        assertEquals("(9 16 25)", engine.execute("(realize (take 3 (filter (lambda (x) (> x 5)) (map (lambda (x) (* x x)) (range)))))", env).toString());
+        assertEquals(7, engine.execute("(car (drop 7 (range)))", env).getValue());
+        assertEquals(42, engine.execute("(nth 42 (range))", env).getValue());
+        assertEquals(3, engine.execute("(car (cdr (cdr (range 1 10))))", env).getValue());
+        assertEquals(10, engine.execute("(length (range 10))", env).getValue());
+        assertFalse(engine.execute("(range 0)", env).asBoolean());
+        assertEquals("(0 1 2 ...)", engine.execute("(range)", env).toString().replaceAll(" 3 .* \\.\\.\\.", " ..."));
+        // Lists stay lists
+        assertEquals("(2 3)", engine.execute("(filter (lambda (x) (> x 1)) (list 1 2 3))", env).toString());
+        assertTrue(engine.execute("(take 2 (list 1 2 3))", env) instanceof Engine.TLListExpression);
+        assertEquals("(3)", engine.execute("(drop 2 (list 1 2 3))", env).toString());
+        // Elements are only computed when consumed
+        engine.execute("(def calls 0)", env);
+        engine.execute("(def s (map (lambda (x) (progn (def calls (+ calls 1)) x)) (range)))", env);
+        assertEquals(0, engine.execute("calls", env).getValue());
+        engine.execute("(nth 2 s)", env);
+        assertEquals(3, engine.execute("calls", env).getValue());
+        // and only once, however they are reached
+        engine.execute("(nth 2 s)", env);
+        engine.execute("(car (cdr (cdr s)))", env);
+        assertEquals(3, engine.execute("calls", env).getValue());
+        engine.execute("(def calls 0)", env);
+        engine.execute("(def s (map (lambda (x) (progn (def calls (+ calls 1)) x)) (range 2000)))", env);
+        engine.execute("(def walk (lambda (s acc) (if s (walk (cdr s) (+ acc (car s))) acc)))", env);
+        assertEquals(1999000, engine.execute("(walk s 0)", env).getValue());
+        assertEquals(1999000, engine.execute("(walk s 0)", env).getValue());
+        assertEquals(2000, engine.execute("(length s)", env).getValue());
+        assertEquals(2000, engine.execute("calls", env).getValue());
+        assertSame(engine.execute("(cdr s)", env), engine.execute("(cdr s)", env));
+        // A pipeline over millions of elements doesn't hold them
+        assertEquals(3000000, engine.execute("(length (filter (lambda (x) (<= x 3000000)) (take 3000000 (map (lambda (x) (+ x 1)) (range)))))", env).getValue());
+        assertEquals(6, engine.execute("(preduce + 0 (range 4))", env).getValue());
+        try {
+            engine.execute("(range 0 10 0)", env);
+            fail("Should fail");
+        } catch (Engine.TLRuntimeException ex) {
+            // Should fail
+        }
+    }
+
+    @Test
+    public void testTransducers() throws Exception {
+        Engine.TLEnvironment env = Engine.defaultEnvironment();
+        env.put(Engine.TLSymbolExpression.of("xs"), Engine.expressionOf(Arrays.asList(1, 2, 3, 4, 5, 6)));
+        assertEquals(21, engine.execute("(transduce (mapping (lambda (x) x)) + 0 xs)", env).getValue());
+        assertEquals("(4 16 36)", engine.execute("(into (list) (comp (filtering (lambda (x) (> x 1))) (mapping (lambda (x) (* x x))) (taking 3)) (list 1 2 4 6 8))", env).toString());
+        assertEquals("(0 2 4)", engine.execute("(into (list 0) (mapping (lambda (x) (* x 2))) [1 2])", env).toString());
+        assertEquals("(1 2)", engine.execute("(into (list) (range 1 3))", env).toString());
+        assertEquals(25, engine.execute("(transduce (comp (mapping (lambda (x) (+ x 1))) (filtering (lambda (x) (> x 2)))) + 0 [1 2 3 4 5 6])", env).getValue());
+        assertEquals(4, engine.execute("((comp car cdr) (list 1 4 9))", env).getValue());
+        assertEquals(7, engine.execute("((comp) 7)", env).getValue());
+        // One pass: each stage sees an element before the next one is read, and taking stops the
+        // reduction early, so an unbounded input is fine
+        engine.execute("(def seen (list))", env);
+        engine.execute("(def xf (comp (mapping (lambda (x) (progn (def seen (cons (list 'map x) seen)) (* x 10))))"
+                + " (filtering (lambda (x) (progn (def seen (cons (list 'filter x) seen)) (> x 0))))"
+                + " (mapping (lambda (x) (+ x 1)))"
+                + " (filtering (lambda (x) true))"
+                + " (taking 2)))", env);
+        assertEquals(32, engine.execute("(transduce xf + 0 (range))", env).getValue());
+        assertEquals("((filter 20) (map 2) (filter 10) (map 1) (filter 0) (map 0))", engine.execute("seen", env).toString());
+        // Transducers are reusable since each reduction gets fresh state
+        assertEquals("(11 21)", engine.execute("(into (list) xf (range))", env).toString());
+        // Any function from reducing function to reducing function works
+        assertEquals(12, engine.execute("(transduce (lambda (rf) (lambda (acc x) (rf acc (* x 2)))) + 0 (list 1 2 3))", env).getValue());
+    }
+
     @Test
     public void testIf() throws Exception {
         assertEquals(1, engine.execute("(if (< 1 2) 1 2)", env).getValue());
@@ -140,6 +767,29 @@ public class EngineTest {
                 3, engine.execute("(let* ((foo 1) (bar (add 1 foo))) (add foo bar))", env).getValue());
         assertEquals("implied progn around body",
                 1, engine.execute("(let* ((foo 1) (bar (add 1 foo))) (add foo bar) foo)", env).getValue());
+        assertEquals("Rebinding shadows previous definition",
+                2, engine.execute("(let* ((foo 1) (foo (add 1 foo))) foo)", env).getValue());
+        assertEquals("Closures capture let* bindings",
+                11, engine.execute("(let* ((foo 10) (f (lambda (x) (add foo x)))) (let* ((foo 100)) (f 1)))", env).getValue());
+        Engine.TLEnvironment stdEnv = engine.newEnvironment();
+        assertEquals("Lambdas can refer to their own binding",
+                42, engine.execute("(let* ((f (lambda (n) (if (< 0 n) (f (- n 1)) 42)))) (f 3))", stdEnv).getValue());
+        assertEquals("Other values can't",
+                2, engine.execute("(let* ((x 1) (x (+ x 1))) x)", stdEnv).getValue());
+    }
+
+    @Test
+    public void testLexicalScope() throws Exception {
+        engine.execute("(def x 100)", env);
+        engine.execute("(def f (lambda (x) (lambda (y) (add x y))))", env);
+        assertEquals("Parameter shadows global", 3, engine.execute("((f 1) 2)", env).getValue());
+        assertEquals(100, engine.execute("x", env).getValue());
+        engine.execute("(def g (lambda () x))", env);
+        engine.execute("(def x 200)", env);
+        assertEquals("Globals are resolved at call time", 200, engine.execute("(g)", env).getValue());
+        engine.execute("(def h (lambda (y) (def z y)))", env);
+        engine.execute("(h 5)", env);
+        assertEquals("def always binds a global", 5, engine.execute("z", env).getValue());
     }
 
     @Test
@@ -149,6 +799,43 @@ public class EngineTest {
         assertEquals(256, engine.execute("(** 2 8)", stdEnv).getValue());
     }
 
+    @Test
+    public void testAnalyzedLambdaReuse() throws Exception {
+        Engine.TLEnvironment stdEnv = Engine.defaultEnvironment();
+        engine.execute("(def fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))", stdEnv);
+        assertEquals(55, engine.execute("(fib 10)", stdEnv).getValue());
+        assertEquals(6765, engine.execute("(fib 20)", stdEnv).getValue());
+        engine.execute("(def adder (lambda (x) (lambda (y) (+ x y))))", stdEnv);
+        engine.execute("(def add1 (adder 1))", stdEnv);
+        engine.execute("(def add2 (adder 2))", stdEnv);
+        assertEquals("Closures made from the same lambda form are independent",
+                Arrays.asList(3, 4), engine.execute("(list (add1 2) (add2 2))", stdEnv).getValue());
+        assertNull("Empty else branch", engine.execute("(if false 1)", stdEnv).getValue());
+    }
+
+    @Test
+    public void testTailCalls() throws Exception {
+        Engine.TLEnvironment stdEnv = Engine.defaultEnvironment();
+        engine.execute("(def loop (lambda (n acc) (if (<= n 0) acc (loop (- n 1) (+ acc 1)))))", stdEnv);
+        assertEquals(1000000, engine.execute("(loop 1000000 0)", stdEnv).getValue());
+        engine.execute("(def even? (lambda (n) (if (= n 0) true (odd? (- n 1)))))", stdEnv);
+        engine.execute("(def odd? (lambda (n) (if (= n 0) false (progn (even? (- n 1))))))", stdEnv);
+        assertTrue("Mutual recursion in tail position", engine.execute("(even? 100000)", stdEnv).asBoolean());
+        engine.execute("(def count (lambda (n) (let* ((m (- n 1))) (if (< m 0) n (count m)))))", stdEnv);
+        assertEquals("Tail position inside let*", 0, engine.execute("(count 100000)", stdEnv).getValue());
+        try {
+            engine.execute("((lambda (n) ((lambda (x y) x) n)) 1)", stdEnv);
+            fail("Too few arguments in a tail call");
+        } catch (Engine.TLRuntimeException ex) {
+            // Should fail
+        }
+        // The operator of a tail call to a builtin is evaluated once
+        engine.execute("(def n 0)", stdEnv);
+        engine.execute("(def f (lambda () ((progn (def n (+ n 1)) +) 1 2)))", stdEnv);
+        assertEquals(3, engine.execute("(f)", stdEnv).getValue());
+        assertEquals(1, engine.execute("n", stdEnv).getValue());
+    }
+
     @Test
     public void testProgn() throws Exception {
         assertEquals(6, engine.execute("(def x (progn (add 2 8) (add 1 5)))", env).getValue());
@@ -175,6 +862,16 @@ public class EngineTest {
         assertEquals(Arrays.asList(1, 2, 3), engine.execute("'(1 2 3)", env).getValue());
     }
 
+    @Test
+    public void testSymbolInterning() throws Exception {
+        assertSame(Engine.TLSymbolExpression.of("foo"), Engine.TLSymbolExpression.of("foo"));
+        assertSame(Engine.TLSymbolExpression.of("foo"), engine.parse("foo"));
+        assertSame(Engine.TLSymbolExpression.of("foo"), engine.execute("'foo", env));
+        Engine.TLListExpression parsed = (Engine.TLListExpression) engine.parse("(foo foo)");
+        assertSame(parsed.get(0), parsed.get(1));
+        assertNotEquals(Engine.TLSymbolExpression.of("foo"), Engine.expressionOf("foo"));
+    }
+
     @Test
     public void testTokenize() {
         assertEquals(Collections.singletonList("foo"), engine.tokenize("foo"));
@@ -198,6 +895,76 @@ public class EngineTest {
         assertEquals(6, engine.execute("(add ; blah\n1 2 3)", env).getValue());
     }
 
+    @Test
+    public void testParse() throws Exception {
+        assertEquals(Arrays.asList("a", Arrays.asList("b", 1), "c"), engine.parse("(a (b 1) c)").getValue());
+        assertEquals(Arrays.asList("progn", 1, 2), engine.parse("1 2").getValue());
+        assertEquals(Arrays.asList("progn", "foo", Arrays.asList("quote", "bar")), engine.parse("foo'bar").getValue());
+        assertEquals(Arrays.asList("progn", "foo", "bar"), engine.parse("foo\"bar\"").getValue());
+        assertEquals(Arrays.asList(1, 2), engine.parse("(1 ; comment\n 2) ; trailing comment").getValue());
+        assertEquals(Arrays.asList("a", "b"), engine.parse("  \n(a\tb)\n\n").getValue());
+        assertEquals("", engine.parse("\"\"").getValue());
+        for (String bad : new String[] {"", "   ", "; only a comment", "(a b", "[1 2", "\"foo", ")"}) {
+            try {
+                engine.parse(bad);
+                fail("Should fail to parse: " + bad);
+            } catch (IllegalArgumentException ex) {
+                // Should fail
+            }
+        }
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            big.append("(item ").append(i).append(" \"name\" [1 2 3] 'sym)\n");
+        }
+        Engine.TLListExpression parsed = (Engine.TLListExpression) engine.parse(big.toString());
+        assertEquals(100001, parsed.size());
+        Engine.TLListExpression last = (Engine.TLListExpression) parsed.get(100000);
+        assertEquals(5, last.size());
+        assertEquals(99999, last.get(1).getValue());
+        assertEquals(Arrays.asList("quote", "sym"), last.get(4).getValue());
+    }
+
+    @Test
+    public void testExecuteReader() throws Exception {
+        Engine.TLEnvironment env = Engine.defaultEnvironment();
+        assertEquals(3, engine.execute(new StringReader("(def x 1) (def y (+ x 1)) ; comment\n(+ x y)"), env).getValue());
+        // Earlier forms take effect before later forms are read
+        try {
+            engine.execute(new StringReader("(def z 42) (oops"), env);
+            fail("Should fail to parse");
+        } catch (IllegalArgumentException ex) {
+            // Should fail
+        }
+        assertEquals(42, env.get(Engine.TLSymbolExpression.of("z")).getValue());
+        // A generated reader that is never held in memory as a whole
+        final int forms = 100000;
+        Reader generated = new Reader() {
+            private int form;
+            private String pending = "";
+            @Override public int read(char[] cbuf, int off, int len) {
+                if (pending.isEmpty()) {
+                    if (form == forms) {
+                        return -1;
+                    }
+                    pending = "(def counter " + form++ + ")\n";
+                }
+                int n = Math.min(len, pending.length());
+                pending.getChars(0, n, cbuf, off);
+                pending = pending.substring(n);
+                return n;
+            }
+            @Override public void close() {
+            }
+        };
+        assertEquals(forms - 1, engine.execute(generated, env).getValue());
+        try {
+            engine.execute(new StringReader(" ; nothing\n"), env);
+            fail("Should fail on empty input");
+        } catch (IllegalArgumentException ex) {
+            // Should fail
+        }
+    }
+
     @Test
     public void testString() throws Exception {
         assertTrue("String should parse to Java object, not symbol",
@@ -384,48 +1151,168 @@ public class EngineTest {
         assertEquals(1, engine.execute("(nth 1 (list 0 1 2))", stdEnv).getValue());
     }
 
+    @Test
+    public void testPersistentLists() throws Exception {
+        Engine.TLEnvironment stdEnv = Engine.defaultEnvironment();
+        engine.execute("(def l '(1 2 3))", stdEnv);
+        engine.execute("(def m (cons 0 l))", stdEnv);
+        engine.execute("(def n (cdr l))", stdEnv);
+        assertEquals(Arrays.asList(0, 1, 2, 3), engine.execute("m", stdEnv).getValue());
+        assertEquals(Arrays.asList(2, 3), engine.execute("n", stdEnv).getValue());
+        assertEquals(Arrays.asList(3), engine.execute("(cdr (cdr l))", stdEnv).getValue());
+        assertEquals(Collections.emptyList(), engine.execute("(cdr (cdr (cdr l)))", stdEnv).getValue());
+        assertEquals(Arrays.asList(3, 4), engine.execute("(map (lambda (x) (+ x 1)) n)", stdEnv).getValue());
+        assertEquals(1, engine.execute("(nth 1 m)", stdEnv).getValue());
+        assertEquals(6, engine.execute("(apply + 1 n)", stdEnv).getValue());
+        assertEquals("(0 1 2 3)", engine.execute("m", stdEnv).toString());
+
+        // Modifying a list from Java doesn't affect lists sharing its cells
+        Engine.TLListExpression l = (Engine.TLListExpression) engine.execute("l", stdEnv);
+        l.add(Engine.expressionOf(4));
+        l.set(0, Engine.expressionOf(-1));
+        assertEquals(Arrays.asList(-1, 2, 3, 4), l.getValue());
+        assertEquals(Arrays.asList(0, 1, 2, 3), engine.execute("m", stdEnv).getValue());
+        assertEquals(Arrays.asList(2, 3), engine.execute("n", stdEnv).getValue());
+        Engine.TLListExpression n = (Engine.TLListExpression) engine.execute("n", stdEnv);
+        n.add(Engine.expressionOf(5));
+        n.remove(0);
+        assertEquals(Arrays.asList(3, 5), n.getValue());
+        assertEquals(Arrays.asList(-1, 2, 3, 4), l.getValue());
+        assertEquals(Arrays.asList(0, 1, 2, 3), engine.execute("m", stdEnv).getValue());
+
+        engine.execute("(def build (lambda (n acc) (if (= n 0) acc (build (- n 1) (cons n acc)))))", stdEnv);
+        engine.execute("(def sum (lambda (l acc) (if l (sum (cdr l) (+ acc (car l))) acc)))", stdEnv);
+        engine.execute("(def big (build 100000 ()))", stdEnv);
+        assertEquals(100000, engine.execute("(length big)", stdEnv).getValue());
+        assertEquals(5000050000L, engine.execute("(sum big 0)", stdEnv).getValue());
+        try {
+            engine.execute("(cdr ())", stdEnv);
+            fail("cdr of empty list");
+        } catch (Engine.TLRuntimeException ex) {
+            // Should fail
+        }
+    }
+
     @Test
     public void testBigNumbers() throws Exception {
         Engine.TLEnvironment stdEnv = Engine.defaultEnvironment();
         stdEnv.put(Engine.TLSymbolExpression.of("INT_MAX"), Engine.expressionOf(Integer.MAX_VALUE));
         stdEnv.put(Engine.TLSymbolExpression.of("INT_MIN"), Engine.expressionOf(Integer.MIN_VALUE));
-        stdEnv.put(Engine.TLSymbolExpression.of("LONG_MAX"), Engine.expressionOf(BigDecimal.valueOf(Long.MAX_VALUE)));
-        stdEnv.put(Engine.TLSymbolExpression.of("LONG_MIN"), Engine.expressionOf(BigDecimal.valueOf(Long.MIN_VALUE)));
+        stdEnv.put(Engine.TLSymbolExpression.of("LONG_MAX"), Engine.expressionOf(Long.MAX_VALUE));
+        stdEnv.put(Engine.TLSymbolExpression.of("LONG_MIN"), Engine.expressionOf(Long.MIN_VALUE));
         stdEnv.put(Engine.TLSymbolExpression.of("DOUBLE_MAX"), Engine.expressionOf(Double.MAX_VALUE));
         stdEnv.put(Engine.TLSymbolExpression.of("DOUBLE_MIN"), Engine.expressionOf(Double.MIN_VALUE));
-        BigDecimal intMaxPlusOne = BigDecimal.valueOf(Integer.MAX_VALUE).add(BigDecimal.ONE);
-        assertEquals(intMaxPlusOne, engine.execute("(+ INT_MAX 1)", stdEnv).getValue());
-        BigDecimal intMinMinusOne = BigDecimal.valueOf(Integer.MIN_VALUE).subtract(BigDecimal.ONE);
-        assertEquals(intMinMinusOne, engine.execute("(- INT_MIN 1)", stdEnv).getValue());
-        BigDecimal intMaxTimesTwo = BigDecimal.valueOf(Integer.MAX_VALUE).multiply(BigDecimal.valueOf(2));
-        assertEquals(intMaxTimesTwo, engine.execute("(* 2 INT_MAX)", stdEnv).getValue());
-        BigDecimal intMinTimesTwo = BigDecimal.valueOf(Integer.MIN_VALUE).multiply(BigDecimal.valueOf(2));
-        assertEquals(intMinTimesTwo, engine.execute("(* INT_MIN 2)", stdEnv).getValue());
-        BigDecimal intMaxDivHalf = BigDecimal.valueOf(Integer.MAX_VALUE).divide(BigDecimal.valueOf(0.5), RoundingMode.UP);
-        assertEquals(intMaxDivHalf, engine.execute("(/ INT_MAX 0.5)", stdEnv).getValue());
-        BigDecimal intMinDivHalf = BigDecimal.valueOf(Integer.MIN_VALUE).divide(BigDecimal.valueOf(0.5), RoundingMode.UP);
-        assertEquals(intMinDivHalf, engine.execute("(/ INT_MIN 0.5)", stdEnv).getValue());
-        BigDecimal longMaxPlusOne = BigDecimal.valueOf(Long.MAX_VALUE).add(BigDecimal.ONE);
+        stdEnv.put(Engine.TLSymbolExpression.of("DECIMAL_MAX"), Engine.expressionOf(BigDecimal.valueOf(Long.MAX_VALUE)));
+        assertEquals((long) Integer.MAX_VALUE + 1, engine.execute("(+ INT_MAX 1)", stdEnv).getValue());
+        assertEquals((long) Integer.MIN_VALUE - 1, engine.execute("(- INT_MIN 1)", stdEnv).getValue());
+        assertEquals((long) Integer.MAX_VALUE * 2, engine.execute("(* 2 INT_MAX)", stdEnv).getValue());
+        assertEquals((long) Integer.MIN_VALUE * 2, engine.execute("(* INT_MIN 2)", stdEnv).getValue());
+        assertEquals((long) Integer.MAX_VALUE * 2, engine.execute("(/ INT_MAX 0.5)", stdEnv).getValue());
+        assertEquals((long) Integer.MIN_VALUE * 2, engine.execute("(/ INT_MIN 0.5)", stdEnv).getValue());
+        assertEquals("Results narrow back down to int",
+                Integer.MAX_VALUE, engine.execute("(- (+ INT_MAX 1) 1)", stdEnv).getValue());
+        BigInteger longMaxPlusOne = BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE);
         assertEquals(longMaxPlusOne, engine.execute("(+ LONG_MAX 1)", stdEnv).getValue());
-        BigDecimal longMinMinusOne = BigDecimal.valueOf(Long.MIN_VALUE).subtract(BigDecimal.ONE);
+        BigInteger longMinMinusOne = BigInteger.valueOf(Long.MIN_VALUE).subtract(BigInteger.ONE);
         assertEquals(longMinMinusOne, engine.execute("(- LONG_MIN 1)", stdEnv).getValue());
-        BigDecimal longMaxTimesTwo = BigDecimal.valueOf(Long.MAX_VALUE).multiply(BigDecimal.valueOf(2));
+        BigInteger longMaxTimesTwo = BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.valueOf(2));
         assertEquals(longMaxTimesTwo, engine.execute("(* 2 LONG_MAX)", stdEnv).getValue());
-        BigDecimal longMinTimesTwo = BigDecimal.valueOf(Long.MIN_VALUE).multiply(BigDecimal.valueOf(2));
+        BigInteger longMinTimesTwo = BigInteger.valueOf(Long.MIN_VALUE).multiply(BigInteger.valueOf(2));
         assertEquals(longMinTimesTwo, engine.execute("(* LONG_MIN 2)", stdEnv).getValue());
-        BigDecimal longMaxDivHalf = BigDecimal.valueOf(Long.MAX_VALUE).divide(BigDecimal.valueOf(0.5), RoundingMode.UP);
-        assertEquals(longMaxDivHalf, engine.execute("(/ LONG_MAX 0.5)", stdEnv).getValue());
-        BigDecimal longMinDivHalf = BigDecimal.valueOf(Long.MIN_VALUE).divide(BigDecimal.valueOf(0.5), RoundingMode.UP);
-        assertEquals(longMinDivHalf, engine.execute("(/ LONG_MIN 0.5)", stdEnv).getValue());
-        BigDecimal doubleMaxPlusOne = BigDecimal.valueOf(Double.MAX_VALUE).add(BigDecimal.ONE);
+        assertEquals(longMaxTimesTwo, engine.execute("(/ LONG_MAX 0.5)", stdEnv).getValue());
+        assertEquals(longMinTimesTwo, engine.execute("(/ LONG_MIN 0.5)", stdEnv).getValue());
+        assertEquals(Long.MAX_VALUE, engine.execute("(/ (* 2 LONG_MAX) 2)", stdEnv).getValue());
+        assertEquals("Integral BigDecimal results become exact integers",
+                longMaxPlusOne, engine.execute("(+ DECIMAL_MAX 1)", stdEnv).getValue());
+        BigInteger doubleMaxPlusOne = BigDecimal.valueOf(Double.MAX_VALUE).toBigIntegerExact().add(BigInteger.ONE);
         assertEquals(doubleMaxPlusOne, engine.execute("(+ DOUBLE_MAX 1)", stdEnv).getValue());
         BigDecimal doubleMaxTimesTwo = BigDecimal.valueOf(Double.MAX_VALUE).multiply(BigDecimal.valueOf(2));
         assertEquals(Engine.reduceBigDecimal(doubleMaxTimesTwo), engine.execute("(* 2 DOUBLE_MAX)", stdEnv).getValue());
         BigDecimal doubleMaxDivHalf = BigDecimal.valueOf(Double.MAX_VALUE).divide(BigDecimal.valueOf(0.5), RoundingMode.UP);
         assertEquals(Engine.reduceBigDecimal(doubleMaxDivHalf), engine.execute("(/ DOUBLE_MAX 0.5)", stdEnv).getValue());
         engine.execute("(def fact (lambda (n) (if (<= n 1) 1 (* n (fact (- n 1))))))", stdEnv);
-        assertEquals(new BigDecimal("93326215443944152681699238856266700490715968264381621468592963895217599993229915608941463976156518286253697920827223758251185210916864000000000000000000000000"),
+        assertEquals(new BigInteger("93326215443944152681699238856266700490715968264381621468592963895217599993229915608941463976156518286253697920827223758251185210916864000000000000000000000000"),
                 engine.execute("(fact 100)", stdEnv).getValue());
+        assertTrue(engine.execute("(< LONG_MAX (+ LONG_MAX 1))", stdEnv).asBoolean());
+        assertTrue("Comparisons don't lose precision",
+                engine.execute("(< (- LONG_MAX 1) LONG_MAX)", stdEnv).asBoolean());
+    }
+
+    @Test
+    public void testIntegerLiterals() throws Exception {
+        Engine.TLEnvironment stdEnv = Engine.defaultEnvironment();
+        assertEquals(2147483647, engine.execute("2147483647", stdEnv).getValue());
+        assertEquals(2147483648L, engine.execute("2147483648", stdEnv).getValue());
+        assertEquals(-9223372036854775808L, engine.execute("-9223372036854775808", stdEnv).getValue());
+        assertEquals(new BigInteger("9223372036854775808"), engine.execute("9223372036854775808", stdEnv).getValue());
+        assertEquals(new BigInteger("-99999999999999999999"), engine.execute("-99999999999999999999", stdEnv).getValue());
+        assertEquals(1.5, engine.execute("1.5", stdEnv).getValue());
+        assertEquals(Engine.TLSymbolExpression.of("-"), engine.parse("-"));
+        assertEquals(new BigInteger("100000000000000000000"), engine.execute("(+ 99999999999999999999 1)", stdEnv).getValue());
+    }
+
+    @Test
+    public void testArithmeticFastPaths() throws Exception {
+        Engine.TLEnvironment stdEnv = Engine.defaultEnvironment();
+        assertEquals(0, engine.execute("(+)", stdEnv).getValue());
+        assertEquals(1, engine.execute("(*)", stdEnv).getValue());
+        assertEquals(-4, engine.execute("(- 1 2 3)", stdEnv).getValue());
+        assertEquals("Integral double results reduce to int",
+                1, engine.execute("(+ 0.5 0.5)", stdEnv).getValue());
+        assertEquals(0.25, engine.execute("(/ 1 4)", stdEnv).getValue());
+        assertEquals(-3, engine.execute("(/ -9 3)", stdEnv).getValue());
+        assertEquals(-(long) Integer.MIN_VALUE,
+                engine.execute("(/ (- 0 2147483647 1) -1)", stdEnv).getValue());
+        try {
+            engine.execute("(/ 1 0)", stdEnv);
+            fail("Division by zero");
+        } catch (ArithmeticException ex) {
+            // Should fail
+        }
+        try {
+            engine.execute("(/ 1.5 0)", stdEnv);
+            fail("Division by zero");
+        } catch (ArithmeticException ex) {
+            // Should fail
+        }
+    }
+
+    @Test
+    public void testDoubleComparisons() throws Exception {
+        Engine.TLEnvironment env = engine.newEnvironment();
+        assertFalse(engine.execute("(< -0.0 0.0)", env).asBoolean());
+        assertFalse(engine.execute("(> 0.0 -0.0)", env).asBoolean());
+        assertTrue(engine.execute("(<= -0.0 0.0)", env).asBoolean());
+        assertTrue(engine.execute("(>= -0.0 0.0 0)", env).asBoolean());
+        // Every primitive comparison with NaN is false, so no argument is ever rejected
+        env.put(Engine.TLSymbolExpression.of("nan"), Engine.TLDoubleExpression.of(Double.NaN));
+        for (String op : new String[] {"<", ">", "<=", ">="}) {
+            assertTrue(op, engine.execute("(" + op + " nan 1)", env).asBoolean());
+            assertTrue(op, engine.execute("(" + op + " 1.5 nan)", env).asBoolean());
+        }
+        assertEquals(1, engine.execute("(min 1 nan)", env).getValue());
+        assertEquals(1, engine.execute("(max 1 nan)", env).getValue());
+    }
+
+    @Test
+    public void testPrimitiveAtoms() throws Exception {
+        Engine.TLEnvironment stdEnv = Engine.defaultEnvironment();
+        assertTrue(engine.execute("(+ 1 2)", stdEnv) instanceof Engine.TLLongExpression);
+        assertTrue(engine.execute("(+ 1.5 2)", stdEnv) instanceof Engine.TLDoubleExpression);
+        assertEquals(1.5 + 2, ((Engine.TLDoubleExpression) engine.execute("(+ 1.5 2)", stdEnv)).doubleValue(), 0);
+        assertEquals(3L, ((Engine.TLLongExpression) engine.execute("(+ 1 2)", stdEnv)).longValue());
+        assertSame("Small integers are cached", engine.execute("(+ 1 2)", stdEnv), engine.execute("3", stdEnv));
+        assertSame(Engine.TLJavaObjectExpression.TRUE, engine.execute("(< 1 2)", stdEnv));
+        assertSame(Engine.TLJavaObjectExpression.FALSE, engine.execute("(> 1 2)", stdEnv));
+        assertSame(Engine.TLJavaObjectExpression.NULL, engine.execute("null", stdEnv));
+        assertSame(Engine.TLJavaObjectExpression.TRUE, Engine.expressionOf(true));
+        assertEquals(Engine.expressionOf(5), Engine.expressionOf(5L));
+        assertEquals("Interop sees boxed values", Integer.class, engine.execute("(+ 1 2)", stdEnv).getValue().getClass());
+        assertEquals(Long.class, engine.execute("(+ 2147483647 1)", stdEnv).getValue().getClass());
+        stdEnv.put(Engine.TLSymbolExpression.of("a"), Engine.TLJavaObjectExpression.of(1));
+        assertTrue("Plain Java numbers still work", engine.execute("(eq (+ a 1) 2)", stdEnv).asBoolean());
+        assertEquals("1.0", Engine.expressionOf(1.0).toString());
+        assertEquals("-5", Engine.expressionOf(-5).toString());
     }
 
     @Test
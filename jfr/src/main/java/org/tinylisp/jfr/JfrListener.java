@@ -0,0 +1,196 @@
+package org.tinylisp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import org.tinylisp.engine.Engine.TLExpression;
+import org.tinylisp.engine.Engine.TLFunction;
+import org.tinylisp.engine.Engine.TLLambdaFunction;
+import org.tinylisp.engine.Engine.TLMethodFunction;
+import org.tinylisp.engine.EngineListener;
+
+import java.util.ArrayDeque;
+
+// Emits Java Flight Recorder events for program executions, top-level form evaluations, Java
+// method calls through TLMethodFunction, and lambda calls, so that they can be lined up with GC,
+// I/O, and other JVM events in one recording. Set it on an engine with Engine.setListener.
+//
+// Events lasting less than their threshold are dropped. The defaults below can be changed in
+// a .jfc file or with e.g. recording.enable("org.tinylisp.LambdaCall").withThreshold(...).
+public class JfrListener extends EngineListener {
+
+    // Longer forms and error messages are cut off
+    private static final int MAX_TEXT = 256;
+
+    @Name("org.tinylisp.Execution")
+    @Label("Program Execution")
+    @Category("TinyLisp")
+    @Description("Execution of a TinyLisp program string or stream")
+    @Threshold("0 ms")
+    static class ExecutionEvent extends Event {
+        @Label("Error")
+        String error;
+    }
+
+    @Name("org.tinylisp.Parse")
+    @Label("Parse")
+    @Category("TinyLisp")
+    @Description("Reading of a top-level form or program string")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class ParseEvent extends Event {
+        @Label("Characters")
+        long chars;
+        @Label("Error")
+        String error;
+    }
+
+    @Name("org.tinylisp.Evaluation")
+    @Label("Form Evaluation")
+    @Category("TinyLisp")
+    @Description("Evaluation of a top-level form")
+    @Threshold("1 ms")
+    static class EvaluationEvent extends Event {
+        @Label("Form")
+        String form;
+        @Label("Error")
+        String error;
+        // Only rendered when the event is committed
+        transient TLExpression source;
+    }
+
+    @Name("org.tinylisp.InteropCall")
+    @Label("Java Interop Call")
+    @Category("TinyLisp")
+    @Description("Call of a Java method bound with TLMethodFunction")
+    @Threshold("1 ms")
+    static class InteropCallEvent extends Event {
+        @Label("Declaring Class")
+        Class<?> declaringClass;
+        @Label("Method")
+        String method;
+        @Label("Error")
+        String error;
+    }
+
+    @Name("org.tinylisp.LambdaCall")
+    @Label("Lambda Call")
+    @Category("TinyLisp")
+    @Description("Call of a TinyLisp lambda, named by the def that bound it")
+    @Threshold("10 ms")
+    static class LambdaCallEvent extends Event {
+        @Label("Lambda")
+        String lambda;
+        @Label("Error")
+        String error;
+    }
+
+    // Stands in for events of disabled types so that begins and ends still pair up
+    private static final Object DISABLED = new Object();
+
+    private final ThreadLocal<ArrayDeque<Object>> events = ThreadLocal.withInitial(ArrayDeque::new);
+
+    @Override public void executing() {
+        begin(new ExecutionEvent());
+    }
+
+    @Override public void executed(long nanos, Throwable error) {
+        Event event = end();
+        if (event != null) {
+            ExecutionEvent execution = (ExecutionEvent) event;
+            execution.error = describe(error);
+            execution.commit();
+        }
+    }
+
+    @Override public void parsing() {
+        begin(new ParseEvent());
+    }
+
+    @Override public void parsed(long chars, long nanos, Throwable error) {
+        Event event = end();
+        if (event != null) {
+            ParseEvent parse = (ParseEvent) event;
+            parse.chars = chars;
+            parse.error = describe(error);
+            parse.commit();
+        }
+    }
+
+    @Override public void evaluating(TLExpression form) {
+        EvaluationEvent event = new EvaluationEvent();
+        event.source = form;
+        begin(event);
+    }
+
+    @Override public void evaluated(long nanos, Throwable error) {
+        Event event = end();
+        if (event != null) {
+            EvaluationEvent evaluation = (EvaluationEvent) event;
+            evaluation.form = truncate(String.valueOf(evaluation.source));
+            evaluation.error = describe(error);
+            evaluation.commit();
+        }
+    }
+
+    @Override public void applying(TLFunction function) {
+        if (function instanceof TLMethodFunction) {
+            begin(new InteropCallEvent());
+        } else if (function instanceof TLLambdaFunction) {
+            begin(new LambdaCallEvent());
+        }
+    }
+
+    @Override public void applied(TLFunction function, long nanos, Throwable error) {
+        if (function instanceof TLMethodFunction) {
+            Event event = end();
+            if (event != null) {
+                InteropCallEvent call = (InteropCallEvent) event;
+                call.declaringClass = ((TLMethodFunction) function).getMethod().getDeclaringClass();
+                call.method = ((TLMethodFunction) function).getMethod().getName();
+                call.error = describe(error);
+                call.commit();
+            }
+        } else if (function instanceof TLLambdaFunction) {
+            Event event = end();
+            if (event != null) {
+                LambdaCallEvent call = (LambdaCallEvent) event;
+                call.lambda = ((TLLambdaFunction) function).getName();
+                call.error = describe(error);
+                call.commit();
+            }
+        }
+    }
+
+    private void begin(Event event) {
+        if (event.isEnabled()) {
+            event.begin();
+            events.get().push(event);
+        } else {
+            events.get().push(DISABLED);
+        }
+    }
+
+    // The event to fill in and commit, or null if it's disabled or under its threshold
+    private Event end() {
+        Object top = events.get().pop();
+        if (top == DISABLED) {
+            return null;
+        }
+        Event event = (Event) top;
+        event.end();
+        return event.shouldCommit() ? event : null;
+    }
+
+    private static String describe(Throwable error) {
+        return error == null ? null : truncate(error.toString());
+    }
+
+    private static String truncate(String text) {
+        return text.length() <= MAX_TEXT ? text : text.substring(0, MAX_TEXT) + "...";
+    }
+}
@@ -0,0 +1,114 @@
+package org.tinylisp.jfr;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import org.tinylisp.engine.Engine;
+
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JfrListenerTest {
+
+    private static final String[] EVENTS = {"org.tinylisp.Execution", "org.tinylisp.Parse",
+            "org.tinylisp.Evaluation", "org.tinylisp.InteropCall", "org.tinylisp.LambdaCall"};
+
+    private static List<RecordedEvent> record(Engine engine, String program, Engine.TLEnvironment env) throws Exception {
+        Path file = Files.createTempFile("tinylisp", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String event : EVENTS) {
+                recording.enable(event).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            try {
+                engine.execute(new StringReader(program), env);
+            } catch (RuntimeException ex) {
+                // Errors are recorded too
+            }
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<RecordedEvent> ofType(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> result = new ArrayList<>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        Engine engine = new Engine();
+        engine.setListener(new JfrListener());
+        Engine.TLEnvironment env = engine.newEnvironment();
+        env.put(Engine.TLSymbolExpression.of("abs"), Engine.TLMethodFunction.of(null, Math.class.getMethod("abs", int.class)));
+        List<RecordedEvent> events = record(engine, "(def f (lambda (x) (abs x))) (f -2)", env);
+        assertEquals(1, ofType(events, "org.tinylisp.Execution").size());
+        // Two forms and the end of input
+        assertEquals(3, ofType(events, "org.tinylisp.Parse").size());
+        assertEquals(2, ofType(events, "org.tinylisp.Evaluation").size());
+        assertEquals("(f -2)", ofType(events, "org.tinylisp.Evaluation").get(1).getString("form"));
+        RecordedEvent call = ofType(events, "org.tinylisp.InteropCall").get(0);
+        assertEquals("abs", call.getString("method"));
+        assertEquals("java.lang.Math", call.getClass("declaringClass").getName());
+        assertEquals("f", ofType(events, "org.tinylisp.LambdaCall").get(0).getString("lambda"));
+        // Failures are reported on the event that failed and the ones enclosing it
+        events = record(engine, "(f \"x\")", env);
+        assertNotNull(ofType(events, "org.tinylisp.InteropCall").get(0).getString("error"));
+        assertNotNull(ofType(events, "org.tinylisp.Evaluation").get(0).getString("error"));
+        assertNotNull(ofType(events, "org.tinylisp.Execution").get(0).getString("error"));
+    }
+
+    @Test
+    public void testTailCalls() throws Exception {
+        Engine engine = new Engine();
+        engine.setListener(new JfrListener());
+        Engine.TLEnvironment env = engine.newEnvironment();
+        String program = "(def loop (lambda (n) (if (<= n 0) n (loop (- n 1)))))"
+                + "(def g (lambda (x) (loop x)))"
+                + "(g 100)";
+        List<RecordedEvent> calls = ofType(record(engine, program, env), "org.tinylisp.LambdaCall");
+        assertEquals(102, calls.size());
+        int loops = 0;
+        for (RecordedEvent call : calls) {
+            if ("loop".equals(call.getString("lambda"))) {
+                loops++;
+            }
+        }
+        assertEquals(101, loops);
+    }
+
+    @Test
+    public void testThresholds() throws Exception {
+        Engine engine = new Engine();
+        engine.setListener(new JfrListener());
+        Engine.TLEnvironment env = engine.newEnvironment();
+        Path file = Files.createTempFile("tinylisp", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.tinylisp.LambdaCall").withThreshold(Duration.ofHours(1));
+            recording.start();
+            engine.execute("((lambda (x) x) 1)", env);
+            recording.stop();
+            recording.dump(file);
+            assertTrue(ofType(RecordingFile.readAllEvents(file), "org.tinylisp.LambdaCall").isEmpty());
+        } finally {
+            Files.delete(file);
+        }
+        // Without a recording nothing is emitted and calls still pair up
+        assertEquals(3, engine.execute("((lambda (x) (+ x 1)) 2)", env).getValue());
+    }
+}